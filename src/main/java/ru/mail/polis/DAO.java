@@ -16,14 +16,20 @@
 
 package ru.mail.polis;
 
+import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 
 /**
  * Storage interface.
@@ -64,6 +70,21 @@ public interface DAO extends Closeable {
         return Iters.until(iterator(from), bound);
     }
 
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s before "to" key (exclusive), null standing for no bound,
+     * down to "from" key (inclusive) in <b>descending</b> order according to {@link Record#compareTo(Record)}.
+     * This implementation collects the ascending range first.
+     */
+    @NotNull
+    default Iterator<Record> descendingRange(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final List<Record> records = new ArrayList<>();
+        range(from, to).forEachRemaining(records::add);
+        Collections.reverse(records);
+        return records.iterator();
+    }
+
     /**
      * Obtains {@link Record} corresponding to given key.
      *
@@ -84,6 +105,29 @@ public interface DAO extends Closeable {
         }
     }
 
+    /**
+     * Takes a consistent read view of the storage which is not affected by later writes.
+     * This implementation copies all records.
+     */
+    @NotNull
+    default Snapshot snapshot() throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        iterator(ByteBuffer.allocate(0)).forEachRemaining(record -> records.put(record.getKey(), record.getValue()));
+        return new Snapshot() {
+            @NotNull
+            @Override
+            public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+                return Iterators.transform(records.tailMap(from).entrySet().iterator(),
+                        entry -> Record.of(entry.getKey(), entry.getValue()));
+            }
+
+            @Override
+            public void close() {
+                records.clear();
+            }
+        };
+    }
+
     /**
      * Inserts or updates value by given key.
      */
@@ -96,6 +140,40 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Removes values by keys starting at "from" key (inclusive) until given "to" key (exclusive),
+     * null standing for no bound.
+     * This implementation removes the keys of the range one by one.
+     */
+    default void removeRange(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        range(from, to).forEachRemaining(record -> keys.add(record.getKey()));
+        for (final ByteBuffer key : keys) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Applies all writes of the batch in order.
+     * Implementations may apply them atomically, so that lookups, iterators obtained
+     * and snapshots taken see all of them or none. Even then an iterator obtained before
+     * the batch is written may see a part of it, as it may see any write made while it runs,
+     * a {@link #snapshot()} is the way to read past concurrent batches consistently.
+     * This implementation applies them one by one.
+     */
+    default void write(@NotNull WriteBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            final ByteBuffer value = batch.value(i);
+            if (value == null) {
+                remove(batch.key(i));
+            } else {
+                upsert(batch.key(i), value);
+            }
+        }
+    }
+
     /**
      * Perform compaction
      */
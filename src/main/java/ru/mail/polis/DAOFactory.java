@@ -17,6 +17,7 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.sempiternal21.Config;
 import ru.mail.polis.sempiternal21.MyDAO;
 
 import java.io.File;
@@ -42,6 +43,20 @@ public final class DAOFactory {
      */
     @NotNull
     static DAO create(@NotNull final File data) throws IOException {
+        return create(data, Config.DEFAULT);
+    }
+
+    /**
+     * Construct a {@link DAO} instance with custom tuning.
+     *
+     * @param data   local disk folder to persist the data to
+     * @param config storage options
+     * @return a storage instance
+     */
+    @NotNull
+    static DAO create(
+            @NotNull final File data,
+            @NotNull final Config config) throws IOException {
         if (Runtime.getRuntime().maxMemory() > MAX_HEAP) {
             throw new IllegalStateException("The heap is too big. Consider setting Xmx.");
         }
@@ -55,6 +70,7 @@ public final class DAOFactory {
         }
 
         // TODO: Implement me
-        return new MyDAO(data, MAX_HEAP / 32);
+        // MemTables shrink below the limit as the heap fills
+        return new MyDAO(data, MAX_HEAP / 32, config);
     }
 }
@@ -0,0 +1,62 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Upserts and removes to be applied by {@link DAO#write(WriteBatch)} in the order they were added,
+ * so a later write of a key wins.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    // Null for removes
+    private final List<ByteBuffer> values = new ArrayList<>();
+
+    /**
+     * Adds an upsert of the value by given key.
+     */
+    @NotNull
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        keys.add(key.duplicate());
+        values.add(value.duplicate());
+        return this;
+    }
+
+    /**
+     * Adds a remove of given key.
+     */
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        keys.add(key.duplicate());
+        values.add(null);
+        return this;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    @NotNull
+    public ByteBuffer key(final int i) {
+        return keys.get(i).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the value of i-th write or null if it is a remove.
+     */
+    @Nullable
+    public ByteBuffer value(final int i) {
+        final ByteBuffer value = values.get(i);
+        return value == null ? null : value.asReadOnlyBuffer();
+    }
+}
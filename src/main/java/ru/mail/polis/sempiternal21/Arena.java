@@ -0,0 +1,66 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free bump allocator of off-heap memory for a {@link MemTable}.
+ *
+ * <p>Bytes are copied into direct slabs of {@link #SLAB_SIZE} bytes, so the heap holds
+ * only views of them. Large buffers get a slab of their own. Slabs are never reused,
+ * they are released together with the last view of them.
+ */
+final class Arena {
+
+    static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MAX_SHARED = SLAB_SIZE / 8;
+
+    private volatile Slab current = new Slab(SLAB_SIZE);
+    private final AtomicLong allocated = new AtomicLong(SLAB_SIZE);
+
+    private static final class Slab {
+        final ByteBuffer buffer;
+        final AtomicInteger position = new AtomicInteger();
+
+        Slab(final int size) {
+            this.buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    /**
+     * Returns an off-heap copy of remaining bytes of the buffer.
+     */
+    @NotNull
+    ByteBuffer copy(@NotNull final ByteBuffer src) {
+        final int size = src.remaining();
+        if (size > MAX_SHARED) {
+            allocated.addAndGet(size);
+            return new Slab(size).buffer.put(src.duplicate()).flip();
+        }
+        while (true) {
+            final Slab slab = current;
+            final int offset = slab.position.getAndAdd(size);
+            if (offset + size <= SLAB_SIZE) {
+                final ByteBuffer copy = slab.buffer.duplicate().position(offset).limit(offset + size).slice();
+                copy.put(src.duplicate());
+                return copy.flip();
+            }
+            synchronized (this) {
+                if (current == slab) {
+                    current = new Slab(SLAB_SIZE);
+                    allocated.addAndGet(SLAB_SIZE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns bytes of all slabs allocated so far.
+     */
+    long allocated() {
+        return allocated.get();
+    }
+}
@@ -0,0 +1,287 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Iters;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Sorted run of cells laid out as records followed by
+ * an array of 4-byte offsets of restart records and the restart count.
+ *
+ * <p>Plain records store the key length as 4 bytes and every record is a restart.
+ * Prefixed records store the length of the prefix shared with the previous key
+ * and the length of the remaining suffix as varints, followed by the suffix only,
+ * while restart records share nothing and so hold the whole key.
+ */
+final class Block {
+
+    private final ByteBuffer data;
+    private final boolean prefixed;
+    private final KeyOrder order;
+    private final int numRestarts;
+    private final int sizeData;
+
+    Block(
+            @NotNull final ByteBuffer data,
+            final boolean prefixed,
+            @NotNull final KeyOrder order) {
+        this.data = data;
+        this.prefixed = prefixed;
+        this.order = order;
+        final int size = data.limit();
+        numRestarts = data.getInt(size - Integer.BYTES);
+        sizeData = size - (numRestarts + 1) * Integer.BYTES;
+    }
+
+    /**
+     * Returns the number of restart records which is the number of rows in plain blocks.
+     */
+    int restarts() {
+        return numRestarts;
+    }
+
+    private int getOffset(final int restart) {
+        return data.getInt(sizeData + restart * Integer.BYTES);
+    }
+
+    @NotNull
+    private ByteBuffer slice(final int offset, final int length) {
+        return data.duplicate()
+                .position(offset)
+                .limit(offset + length)
+                .slice();
+    }
+
+    @NotNull
+    private ByteBuffer restartKey(final int restart) {
+        final ByteBuffer in = data.duplicate().position(getOffset(restart));
+        final int length;
+        if (prefixed) {
+            readVarInt(in);
+            length = readVarInt(in);
+        } else {
+            length = in.getInt();
+        }
+        return slice(in.position(), length);
+    }
+
+    @NotNull
+    Iterator<Cell> iterator() {
+        return new Cursor(0);
+    }
+
+    /**
+     * Returns cells starting from the first one with key not less than given.
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        if (numRestarts == 0) {
+            return Iters.empty();
+        }
+        final Cursor cursor = new Cursor(getOffset(binarySearch(from)));
+        cursor.skipTo(from);
+        return cursor;
+    }
+
+    /**
+     * Returns cells with keys less than given one in descending order, null stands for no bound.
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(@Nullable final ByteBuffer to) {
+        if (numRestarts == 0) {
+            return Iters.empty();
+        }
+        return new DescendingCursor(to == null ? numRestarts - 1 : lastRestartBefore(to), to);
+    }
+
+    /**
+     * Returns the cell stored by given key or null if there is none.
+     */
+    @Nullable
+    Cell get(@NotNull final ByteBuffer key) {
+        if (numRestarts == 0) {
+            return null;
+        }
+        final Cursor cursor = new Cursor(getOffset(binarySearch(key)));
+        cursor.skipTo(key);
+        return cursor.hasNext() && order.compare(cursor.key, key) == 0 ? cursor.next() : null;
+    }
+
+    /**
+     * Returns the last restart with key not greater than given one or the first restart.
+     */
+    private int binarySearch(@NotNull final ByteBuffer from) {
+        int l = 0;
+        int r = numRestarts - 1;
+        while (l <= r) {
+            final int med = (l + r) / 2;
+            final int cmp = order.compare(restartKey(med), from);
+            if (cmp < 0) {
+                l = med + 1;
+            } else if (cmp > 0) {
+                r = med - 1;
+            } else {
+                return med;
+            }
+        }
+        return Math.max(r, 0);
+    }
+
+    /**
+     * Returns the last restart with key less than given one or -1 if there is none.
+     */
+    private int lastRestartBefore(@NotNull final ByteBuffer to) {
+        int l = 0;
+        int r = numRestarts - 1;
+        while (l <= r) {
+            final int med = (l + r) / 2;
+            if (order.compare(restartKey(med), to) < 0) {
+                l = med + 1;
+            } else {
+                r = med - 1;
+            }
+        }
+        return r;
+    }
+
+    static int readVarInt(@NotNull final ByteBuffer in) {
+        int result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return result;
+    }
+
+    /**
+     * Decodes records one by one, restoring keys from the previous ones.
+     */
+    private final class Cursor implements Iterator<Cell> {
+        private final ByteBuffer in;
+        private ByteBuffer key;
+        private Cell next;
+
+        Cursor(final int offset) {
+            this(offset, sizeData);
+        }
+
+        Cursor(final int offset, final int end) {
+            this.in = data.duplicate().position(offset).limit(end);
+            advance();
+        }
+
+        void skipTo(@NotNull final ByteBuffer from) {
+            while (next != null && order.compare(key, from) < 0) {
+                advance();
+            }
+        }
+
+        private void advance() {
+            if (!in.hasRemaining()) {
+                next = null;
+                return;
+            }
+            final int shared;
+            final int length;
+            if (prefixed) {
+                shared = readVarInt(in);
+                length = readVarInt(in);
+            } else {
+                shared = 0;
+                length = in.getInt();
+            }
+            if (shared == 0) {
+                key = slice(in.position(), length);
+            } else {
+                final byte[] bytes = new byte[shared + length];
+                key.duplicate().get(bytes, 0, shared);
+                in.duplicate().get(bytes, shared, length);
+                key = ByteBuffer.wrap(bytes);
+            }
+            in.position(in.position() + length);
+            final long timestamp = in.getLong();
+            if (timestamp < 0) {
+                next = new Cell(key, new Value(-timestamp));
+            } else {
+                final int valueSize = prefixed ? readVarInt(in) : in.getInt();
+                next = new Cell(key, new Value(timestamp, slice(in.position(), valueSize)));
+                in.position(in.position() + valueSize);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Cell next() {
+            if (next == null) {
+                throw new NoSuchElementException("End of block");
+            }
+            final Cell result = next;
+            advance();
+            return result;
+        }
+    }
+
+    /**
+     * Walks restarts backwards decoding the records of each one forward,
+     * so that only a run of records between two restarts is kept at a time.
+     */
+    private final class DescendingCursor implements Iterator<Cell> {
+        @Nullable
+        private final ByteBuffer to;
+        private final Deque<Cell> run = new ArrayDeque<>(SSTable.RESTART_INTERVAL);
+        private int restart;
+
+        DescendingCursor(
+                final int restart,
+                @Nullable final ByteBuffer to) {
+            this.restart = restart;
+            this.to = to;
+            fill();
+        }
+
+        private void fill() {
+            while (run.isEmpty() && restart >= 0) {
+                final int end = restart + 1 < numRestarts ? getOffset(restart + 1) : sizeData;
+                final Cursor cursor = new Cursor(getOffset(restart), end);
+                while (cursor.hasNext()) {
+                    final Cell cell = cursor.next();
+                    if (to != null && cell.compareKeyTo(to, order) >= 0) {
+                        break;
+                    }
+                    run.push(cell);
+                }
+                restart--;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !run.isEmpty();
+        }
+
+        @Override
+        public Cell next() {
+            if (run.isEmpty()) {
+                throw new NoSuchElementException("End of block");
+            }
+            final Cell result = run.pop();
+            if (run.isEmpty()) {
+                fill();
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Least recently used blocks decompressed from SSTables, bounded by the total size of their data,
+ * so that reads of a hot block do not inflate it again.
+ *
+ * <p>Blocks are spread over segments each guarded by its own lock, so concurrent readers
+ * rarely wait for each other. Each SSTable takes an id of its own to key its blocks with.
+ */
+final class BlockCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicInteger tables = new AtomicInteger();
+
+    BlockCache(final long maxSize) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxSize / SEGMENTS);
+        }
+    }
+
+    /**
+     * Returns a new id for the blocks of an SSTable.
+     */
+    int newTable() {
+        return tables.getAndIncrement();
+    }
+
+    @Nullable
+    Block get(
+            final int table,
+            final int block) {
+        final long key = key(table, block);
+        return segment(key).get(key);
+    }
+
+    /**
+     * Keeps the block given the size of its data, evicting least recently used ones if the segment is full.
+     */
+    void put(
+            final int table,
+            final int block,
+            @NotNull final Block value,
+            final int size) {
+        final long key = key(table, block);
+        segment(key).put(key, value, size);
+    }
+
+    /**
+     * Drops all blocks of the SSTable.
+     */
+    void invalidate(final int table) {
+        for (final Segment segment : segments) {
+            segment.invalidate(table);
+        }
+    }
+
+    private static long key(
+            final int table,
+            final int block) {
+        return (long) table << Integer.SIZE | (block & 0xFFFF_FFFFL);
+    }
+
+    @NotNull
+    private Segment segment(final long key) {
+        return segments[(Long.hashCode(key * 0x9E37_79B9_7F4A_7C15L) >>> 1) % SEGMENTS];
+    }
+
+    private static final class Entry {
+        final Block block;
+        final int size;
+
+        Entry(
+                @NotNull final Block block,
+                final int size) {
+            this.block = block;
+            this.size = size;
+        }
+    }
+
+    private static final class Segment {
+        private final long maxSize;
+        // Access ordered, the eldest entry is evicted first
+        private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long size;
+
+        Segment(final long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Nullable
+        synchronized Block get(final long key) {
+            final Entry entry = entries.get(key);
+            return entry == null ? null : entry.block;
+        }
+
+        synchronized void put(
+                final long key,
+                @NotNull final Block block,
+                final int blockSize) {
+            if (blockSize > maxSize) {
+                return;
+            }
+            final Entry previous = entries.put(key, new Entry(block, blockSize));
+            size += blockSize - (previous == null ? 0 : previous.size);
+            final Iterator<Entry> eldest = entries.values().iterator();
+            while (size > maxSize) {
+                size -= eldest.next().size;
+                eldest.remove();
+            }
+        }
+
+        synchronized void invalidate(final int table) {
+            final Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Long, Entry> entry = iterator.next();
+                if ((int) (entry.getKey() >>> Integer.SIZE) == table) {
+                    size -= entry.getValue().size;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.mail.polis.sempiternal21;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over keys stored in a {@link ByteBuffer}, so that it may be
+ * built on heap and then read straight from a mapped {@link SSTable}.
+ *
+ * <p>Serialized as the number of hash functions, the number of 8-byte words and the words.
+ */
+final class BloomFilter {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final long MAX_WORDS = Integer.MAX_VALUE / Long.SIZE;
+
+    private final ByteBuffer buffer;
+    private final int numHashes;
+    private final long numBits;
+
+    private BloomFilter(@NotNull final ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.numHashes = buffer.getInt(0);
+        this.numBits = (long) buffer.getInt(Integer.BYTES) * Long.SIZE;
+    }
+
+    /**
+     * Creates an empty filter sized for given number of keys and false positive rate.
+     */
+    @NotNull
+    static BloomFilter create(final int expectedKeys, final double falsePositiveRate) {
+        assert falsePositiveRate > 0.0 && falsePositiveRate < 1.0;
+        final long keys = Math.max(expectedKeys, 1);
+        final double bits = -keys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        final int words = (int) Math.min(Math.max((long) Math.ceil(bits / Long.SIZE), 1L), MAX_WORDS);
+        final int hashes = Math.max(1, (int) Math.round((double) words * Long.SIZE / keys * Math.log(2)));
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + words * Long.BYTES)
+                .putInt(hashes)
+                .putInt(words)
+                .rewind();
+        return new BloomFilter(buffer);
+    }
+
+    /**
+     * Wraps a serialized filter without copying it.
+     */
+    @NotNull
+    static BloomFilter read(@NotNull final ByteBuffer buffer) {
+        return new BloomFilter(buffer);
+    }
+
+    void add(@NotNull final ByteBuffer key) {
+        final long hash = HASH.hashBytes(key.duplicate()).asLong();
+        for (int i = 1; i <= numHashes; i++) {
+            final long bit = bit(hash, i);
+            final int offset = wordOffset(bit);
+            buffer.putLong(offset, buffer.getLong(offset) | (1L << bit));
+        }
+    }
+
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = HASH.hashBytes(key.duplicate()).asLong();
+        for (int i = 1; i <= numHashes; i++) {
+            final long bit = bit(hash, i);
+            if ((buffer.getLong(wordOffset(bit)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Derives i-th bit index from two halves of the hash (Kirsch-Mitzenmacher).
+     */
+    private long bit(final long hash, final int i) {
+        int combined = (int) hash + i * (int) (hash >>> 32);
+        if (combined < 0) {
+            combined = ~combined;
+        }
+        return combined % numBits;
+    }
+
+    private static int wordOffset(final long bit) {
+        return HEADER_SIZE + (int) (bit >>> 6) * Long.BYTES;
+    }
+
+    /**
+     * Returns the serialized form of the filter.
+     */
+    @NotNull
+    ByteBuffer toBuffer() {
+        return buffer.duplicate();
+    }
+}
@@ -3,29 +3,38 @@ package ru.mail.polis.sempiternal21;
 import org.jetbrains.annotations.NotNull;
 
 import java.nio.ByteBuffer;
+import java.util.Comparator;
 
-final class Cell implements Comparable<Cell> {
+final class Cell {
 
     @NotNull
     private final ByteBuffer key;
     @NotNull
     private final Value value;
 
-    @Override
-    public int compareTo(@NotNull final Cell cell) {
-        final int cmp = key.compareTo(cell.getKey());
-        if (cmp == 0) {
-            return Long.compare(cell.getValue().getTimestamp(), value.getTimestamp());
-        } else {
-            return cmp;
-        }
-    }
-
     Cell(@NotNull final ByteBuffer key, @NotNull final Value value) {
         this.key = key;
         this.value = value;
     }
 
+    /**
+     * Compares keys only in given order, without making read-only views of them.
+     */
+    int compareKeyTo(
+            @NotNull final Cell cell,
+            @NotNull final Comparator<ByteBuffer> order) {
+        return order.compare(key, cell.key);
+    }
+
+    /**
+     * Compares the key with given one in given order, without making a read-only view of it.
+     */
+    int compareKeyTo(
+            @NotNull final ByteBuffer other,
+            @NotNull final Comparator<ByteBuffer> order) {
+        return order.compare(key, other);
+    }
+
     @NotNull
     public ByteBuffer getKey() {
         return key.asReadOnlyBuffer();
@@ -0,0 +1,80 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * SSTables chosen to be merged and where the result goes.
+ *
+ * <p>Output to level 0 takes the places of the newest inputs, so inputs must be a run
+ * of consecutive generations. It is split into tables of limited size holding disjoint key ranges
+ * as long as there are places left. Output to other levels is split into tables of limited size
+ * with new generations.
+ */
+final class Compaction {
+
+    @NotNull
+    final NavigableMap<Integer, SSTable> inputs;
+    final int level;
+    final long maxTableSize;
+
+    Compaction(
+            @NotNull final NavigableMap<Integer, SSTable> inputs,
+            final int level,
+            final long maxTableSize) {
+        assert !inputs.isEmpty();
+        this.inputs = inputs;
+        this.level = level;
+        this.maxTableSize = maxTableSize;
+    }
+
+    /**
+     * Returns whether most cells of the table are tombstones some of which are old enough
+     * to be dropped by a compaction covering the oldest data for their keys.
+     *
+     * @param purgeBefore - tombstones older than that may be dropped
+     */
+    static boolean tombstoneHeavy(
+            @NotNull final SSTable table,
+            final double ratio,
+            final long purgeBefore) {
+        return table.tombstoneRows() > 0
+                && table.tombstoneRatio() >= ratio
+                && table.oldestTombstone() < purgeBefore;
+    }
+
+    /**
+     * Returns the generation of the table with the largest share of tombstones
+     * among tombstone heavy ones or null if there are none.
+     */
+    @Nullable
+    static Integer mostTombstones(
+            @NotNull final NavigableMap<Integer, SSTable> tables,
+            @NotNull final Config config) {
+        final long purgeBefore = System.currentTimeMillis() - config.getTombstoneGracePeriod();
+        Integer result = null;
+        double ratio = 0.0;
+        for (final Map.Entry<Integer, SSTable> entry : tables.entrySet()) {
+            final SSTable table = entry.getValue();
+            if (tombstoneHeavy(table, config.getCompactionTombstoneRatio(), purgeBefore)
+                    && table.tombstoneRatio() > ratio) {
+                result = entry.getKey();
+                ratio = table.tombstoneRatio();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges given run of tables into tables of level 0 of about the max size of the config.
+     */
+    @NotNull
+    static Compaction inPlace(
+            @NotNull final NavigableMap<Integer, SSTable> inputs,
+            @NotNull final Config config) {
+        return new Compaction(inputs, 0, config.getMaxTableSize());
+    }
+}
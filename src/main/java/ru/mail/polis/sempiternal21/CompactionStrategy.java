@@ -0,0 +1,42 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.NavigableMap;
+
+/**
+ * Decides which SSTables {@link MyDAO} merges.
+ */
+interface CompactionStrategy {
+
+    /**
+     * Returns SSTables worth merging in the background now or null if there are none.
+     *
+     * @param tables - SSTables by generation which may be compacted
+     */
+    @Nullable
+    Compaction pick(@NotNull NavigableMap<Integer, SSTable> tables);
+
+    /**
+     * Returns the merge of all given SSTables requested by {@link MyDAO#compact()}.
+     *
+     * @param tables - non-empty SSTables by generation which may be compacted
+     */
+    @NotNull
+    Compaction major(@NotNull NavigableMap<Integer, SSTable> tables);
+
+    @NotNull
+    static CompactionStrategy of(@NotNull final Config config) {
+        switch (config.getCompactionStyle()) {
+            case FULL:
+                return new FullCompaction(config);
+            case LEVELED:
+                return new LeveledCompaction(config);
+            case SIZE_TIERED:
+                return new SizeTieredCompaction(config);
+            default:
+                throw new IllegalArgumentException("Unknown compaction style " + config.getCompactionStyle());
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package ru.mail.polis.sempiternal21;
+
+/**
+ * How {@link MyDAO} organizes and merges SSTables.
+ */
+public enum CompactionStyle {
+    /**
+     * All SSTables are merged into one at once.
+     */
+    FULL,
+    /**
+     * Flushed SSTables are merged into levels of disjoint tables, each level
+     * several times larger than the previous one, a table at a time.
+     */
+    LEVELED,
+    /**
+     * SSTables of similar size are merged together once there are enough of them.
+     */
+    SIZE_TIERED
+}
@@ -0,0 +1,35 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec applied to each SSTable block independently.
+ *
+ * <p>The {@link #id()} is stored with every block, so a new codec needs an id of its own
+ * and is registered with {@link Config.Builder#codec(Compression)} to be readable.
+ * Built-in codecs are always registered.
+ */
+public interface Compression {
+    Compression NONE = new NoCompression();
+    Compression DEFLATE = new DeflateCompression();
+
+    /**
+     * Returns the id stored with blocks as an unsigned byte.
+     */
+    int id();
+
+    /**
+     * Compresses remaining bytes of the buffer, the result may share content with it.
+     */
+    @NotNull
+    ByteBuffer compress(@NotNull ByteBuffer raw);
+
+    /**
+     * Restores the buffer given to {@link #compress(ByteBuffer)}.
+     */
+    @NotNull
+    ByteBuffer decompress(@NotNull ByteBuffer compressed) throws IOException;
+}
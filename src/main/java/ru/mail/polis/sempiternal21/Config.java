@@ -0,0 +1,544 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tuning options of {@link MyDAO}.
+ */
+public final class Config {
+    // SSTable offsets are ints, the rest leaves room for the last cell, the index and the filter
+    private static final long MAX_TABLE_SIZE = 1L << 30;
+    public static final Config DEFAULT = builder().build();
+
+    private final double bloomFalsePositiveRate;
+    private final int writeBufferSize;
+    private final boolean directWriteBuffer;
+    private final Compression compression;
+    private final Map<Integer, Compression> codecs;
+    private final long blockCacheSize;
+    private final int maxPendingFlushes;
+    private final boolean autoCompaction;
+    private final int compactionTableCount;
+    private final double compactionSizeRatio;
+    private final double compactionTombstoneRatio;
+    private final long tombstoneGracePeriod;
+    private final CompactionStyle compactionStyle;
+    private final long targetTableSize;
+    private final long maxTableSize;
+    private final int levelSizeMultiplier;
+    private final SyncPolicy syncPolicy;
+    private final long syncPeriod;
+    private final int openThreads;
+    private final boolean warmUp;
+    private final boolean offHeapMemTable;
+    private final long offHeapMemTableSize;
+    private final KeyOrder keyOrder;
+
+    private Config(@NotNull final Builder builder) {
+        this.bloomFalsePositiveRate = builder.bloomFalsePositiveRate;
+        this.writeBufferSize = builder.writeBufferSize;
+        this.directWriteBuffer = builder.directWriteBuffer;
+        this.compression = builder.compression;
+        this.codecs = Collections.unmodifiableMap(new HashMap<>(builder.codecs));
+        this.blockCacheSize = builder.blockCacheSize;
+        this.maxPendingFlushes = builder.maxPendingFlushes;
+        this.autoCompaction = builder.autoCompaction;
+        this.compactionTableCount = builder.compactionTableCount;
+        this.compactionSizeRatio = builder.compactionSizeRatio;
+        this.compactionTombstoneRatio = builder.compactionTombstoneRatio;
+        this.tombstoneGracePeriod = builder.tombstoneGracePeriod;
+        this.compactionStyle = builder.compactionStyle;
+        this.targetTableSize = builder.targetTableSize;
+        this.maxTableSize = builder.maxTableSize;
+        this.levelSizeMultiplier = builder.levelSizeMultiplier;
+        this.syncPolicy = builder.syncPolicy;
+        this.syncPeriod = builder.syncPeriod;
+        this.openThreads = builder.openThreads;
+        this.warmUp = builder.warmUp;
+        this.offHeapMemTable = builder.offHeapMemTable;
+        this.offHeapMemTableSize = builder.offHeapMemTableSize;
+        this.keyOrder = builder.keyOrder;
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Target false positive rate of per-SSTable Bloom filters.
+     */
+    public double getBloomFalsePositiveRate() {
+        return bloomFalsePositiveRate;
+    }
+
+    /**
+     * Size of the buffer SSTables are written through.
+     */
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    /**
+     * Whether SSTables are written through a direct buffer.
+     */
+    public boolean isDirectWriteBuffer() {
+        return directWriteBuffer;
+    }
+
+    /**
+     * Codec of SSTable blocks written from now on.
+     */
+    @NotNull
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Returns the registered codec of given id.
+     *
+     * @throws IOException if there is no such codec
+     */
+    @NotNull
+    Compression codec(final int id) throws IOException {
+        final Compression codec = codecs.get(id);
+        if (codec == null) {
+            throw new IOException("Unknown compression " + id);
+        }
+        return codec;
+    }
+
+    /**
+     * Total size of decompressed blocks kept for reads, 0 if none are.
+     */
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    /**
+     * Number of full MemTables which may wait for the background flush before writers are stalled.
+     */
+    public int getMaxPendingFlushes() {
+        return maxPendingFlushes;
+    }
+
+    /**
+     * Whether SSTables are compacted in the background once a trigger fires.
+     */
+    public boolean isAutoCompaction() {
+        return autoCompaction;
+    }
+
+    /**
+     * Number of SSTables which triggers background compaction.
+     */
+    public int getCompactionTableCount() {
+        return compactionTableCount;
+    }
+
+    /**
+     * Ratio of the size of newer SSTables to the size of the largest one which triggers background compaction.
+     */
+    public double getCompactionSizeRatio() {
+        return compactionSizeRatio;
+    }
+
+    /**
+     * Share of tombstones in an SSTable which triggers background compaction.
+     */
+    public double getCompactionTombstoneRatio() {
+        return compactionTombstoneRatio;
+    }
+
+    /**
+     * Milliseconds a tombstone is kept for before compaction may drop it.
+     */
+    public long getTombstoneGracePeriod() {
+        return tombstoneGracePeriod;
+    }
+
+    /**
+     * How SSTables are organized and merged.
+     */
+    @NotNull
+    public CompactionStyle getCompactionStyle() {
+        return compactionStyle;
+    }
+
+    /**
+     * Size of SSTables produced by leveled compaction.
+     */
+    public long getTargetTableSize() {
+        return targetTableSize;
+    }
+
+    /**
+     * Size of data after which full and size-tiered compactions start a new SSTable.
+     */
+    public long getMaxTableSize() {
+        return maxTableSize;
+    }
+
+    /**
+     * Ratio of sizes of adjacent levels of leveled compaction.
+     */
+    public int getLevelSizeMultiplier() {
+        return levelSizeMultiplier;
+    }
+
+    /**
+     * When logged writes are forced to disk.
+     */
+    @NotNull
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Milliseconds between syncs of the log with {@link SyncPolicy#PERIODIC}.
+     */
+    public long getSyncPeriod() {
+        return syncPeriod;
+    }
+
+    /**
+     * Threads opening SSTables at startup.
+     */
+    public int getOpenThreads() {
+        return openThreads;
+    }
+
+    /**
+     * Whether indexes and pages of SSTables are preloaded in the background after startup.
+     */
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Whether MemTables copy keys and values off heap.
+     */
+    public boolean isOffHeapMemTable() {
+        return offHeapMemTable;
+    }
+
+    /**
+     * Bytes a MemTable may copy off heap before it is flushed, its heap part is bounded by the flush size.
+     */
+    public long getOffHeapMemTableSize() {
+        return offHeapMemTableSize;
+    }
+
+    /**
+     * Order of keys in tables and scans.
+     */
+    @NotNull
+    public KeyOrder getKeyOrder() {
+        return keyOrder;
+    }
+
+    public static final class Builder {
+        private double bloomFalsePositiveRate = 0.01;
+        private int writeBufferSize = 1024 * 1024;
+        private boolean directWriteBuffer;
+        private Compression compression = Compression.NONE;
+        private final Map<Integer, Compression> codecs = new HashMap<>(Map.of(
+                Compression.NONE.id(), Compression.NONE,
+                Compression.DEFLATE.id(), Compression.DEFLATE));
+        private long blockCacheSize = 8L * 1024 * 1024;
+        private int maxPendingFlushes = 2;
+        private boolean autoCompaction = true;
+        private int compactionTableCount = 8;
+        private double compactionSizeRatio = 1.0;
+        private double compactionTombstoneRatio = 0.5;
+        private long tombstoneGracePeriod;
+        private CompactionStyle compactionStyle = CompactionStyle.FULL;
+        private long targetTableSize = 2L * 1024 * 1024;
+        private long maxTableSize = MAX_TABLE_SIZE;
+        private int levelSizeMultiplier = 10;
+        private SyncPolicy syncPolicy = SyncPolicy.NONE;
+        private long syncPeriod = 100L;
+        private int openThreads = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+        private boolean warmUp;
+        private boolean offHeapMemTable;
+        private long offHeapMemTableSize = 16L * 1024 * 1024;
+        private KeyOrder keyOrder = KeyOrder.SIGNED;
+
+        private Builder() {
+            // Use Config.builder()
+        }
+
+        /**
+         * Sets target false positive rate of Bloom filters, must be in (0, 1).
+         */
+        @NotNull
+        public Builder bloomFalsePositiveRate(final double bloomFalsePositiveRate) {
+            if (!(bloomFalsePositiveRate > 0.0 && bloomFalsePositiveRate < 1.0)) {
+                throw new IllegalArgumentException("False positive rate must be in (0, 1): " + bloomFalsePositiveRate);
+            }
+            this.bloomFalsePositiveRate = bloomFalsePositiveRate;
+            return this;
+        }
+
+        /**
+         * Sets size of the buffer SSTables are written through.
+         */
+        @NotNull
+        public Builder writeBufferSize(final int writeBufferSize) {
+            if (writeBufferSize < Long.BYTES) {
+                throw new IllegalArgumentException("Write buffer is too small: " + writeBufferSize);
+            }
+            this.writeBufferSize = writeBufferSize;
+            return this;
+        }
+
+        /**
+         * Sets whether to allocate the write buffer off-heap to spare a copy on each write.
+         */
+        @NotNull
+        public Builder directWriteBuffer(final boolean directWriteBuffer) {
+            this.directWriteBuffer = directWriteBuffer;
+            return this;
+        }
+
+        /**
+         * Sets codec of SSTable blocks, tables already written keep their codec.
+         */
+        @NotNull
+        public Builder compression(@NotNull final Compression compression) {
+            codec(compression);
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Registers the codec, so that blocks it wrote are readable, its id must fit into a byte
+         * and not be taken by another codec.
+         */
+        @NotNull
+        public Builder codec(@NotNull final Compression codec) {
+            final int id = codec.id();
+            if (id < 0 || id > 0xFF) {
+                throw new IllegalArgumentException("Codec id must fit into a byte: " + id);
+            }
+            final Compression registered = codecs.putIfAbsent(id, codec);
+            if (registered != null && registered != codec) {
+                throw new IllegalArgumentException("Codec id " + id + " is taken by " + registered);
+            }
+            return this;
+        }
+
+        /**
+         * Sets total size of decompressed blocks kept for reads, 0 turns the cache off.
+         */
+        @NotNull
+        public Builder blockCacheSize(final long blockCacheSize) {
+            if (blockCacheSize < 0L) {
+                throw new IllegalArgumentException("Block cache size must not be negative: " + blockCacheSize);
+            }
+            this.blockCacheSize = blockCacheSize;
+            return this;
+        }
+
+        /**
+         * Sets number of full MemTables which may wait for the background flush, must be positive.
+         */
+        @NotNull
+        public Builder maxPendingFlushes(final int maxPendingFlushes) {
+            if (maxPendingFlushes < 1) {
+                throw new IllegalArgumentException("Pending flush limit must be positive: " + maxPendingFlushes);
+            }
+            this.maxPendingFlushes = maxPendingFlushes;
+            return this;
+        }
+
+        /**
+         * Sets whether to compact SSTables in the background.
+         */
+        @NotNull
+        public Builder autoCompaction(final boolean autoCompaction) {
+            this.autoCompaction = autoCompaction;
+            return this;
+        }
+
+        /**
+         * Sets number of SSTables which triggers background compaction, must be at least 2.
+         */
+        @NotNull
+        public Builder compactionTableCount(final int compactionTableCount) {
+            if (compactionTableCount < 2) {
+                throw new IllegalArgumentException("Compaction table count must be at least 2: "
+                        + compactionTableCount);
+            }
+            this.compactionTableCount = compactionTableCount;
+            return this;
+        }
+
+        /**
+         * Sets ratio of the size of newer SSTables to the largest one which triggers compaction, must be positive.
+         */
+        @NotNull
+        public Builder compactionSizeRatio(final double compactionSizeRatio) {
+            if (!(compactionSizeRatio > 0.0)) {
+                throw new IllegalArgumentException("Compaction size ratio must be positive: " + compactionSizeRatio);
+            }
+            this.compactionSizeRatio = compactionSizeRatio;
+            return this;
+        }
+
+        /**
+         * Sets share of tombstones in an SSTable which triggers compaction, must be in (0, 1].
+         */
+        @NotNull
+        public Builder compactionTombstoneRatio(final double compactionTombstoneRatio) {
+            if (!(compactionTombstoneRatio > 0.0 && compactionTombstoneRatio <= 1.0)) {
+                throw new IllegalArgumentException("Tombstone ratio must be in (0, 1]: " + compactionTombstoneRatio);
+            }
+            this.compactionTombstoneRatio = compactionTombstoneRatio;
+            return this;
+        }
+
+        /**
+         * Sets milliseconds a tombstone is kept for before compaction may drop it, must not be negative.
+         */
+        @NotNull
+        public Builder tombstoneGracePeriod(final long tombstoneGracePeriod) {
+            if (tombstoneGracePeriod < 0L) {
+                throw new IllegalArgumentException("Grace period must not be negative: " + tombstoneGracePeriod);
+            }
+            this.tombstoneGracePeriod = tombstoneGracePeriod;
+            return this;
+        }
+
+        /**
+         * Sets how SSTables are organized and merged, tables already written are merged the new way.
+         */
+        @NotNull
+        public Builder compactionStyle(@NotNull final CompactionStyle compactionStyle) {
+            this.compactionStyle = compactionStyle;
+            return this;
+        }
+
+        /**
+         * Sets size of SSTables produced by leveled compaction, must be in (0, 1 GB].
+         */
+        @NotNull
+        public Builder targetTableSize(final long targetTableSize) {
+            if (targetTableSize <= 0L || targetTableSize > MAX_TABLE_SIZE) {
+                throw new IllegalArgumentException("Table size must be in (0, 1 GB]: " + targetTableSize);
+            }
+            this.targetTableSize = targetTableSize;
+            return this;
+        }
+
+        /**
+         * Sets size of data after which full and size-tiered compactions start a new SSTable,
+         * must be in (0, 1 GB].
+         */
+        @NotNull
+        public Builder maxTableSize(final long maxTableSize) {
+            if (maxTableSize <= 0L || maxTableSize > MAX_TABLE_SIZE) {
+                throw new IllegalArgumentException("Max table size must be in (0, 1 GB]: " + maxTableSize);
+            }
+            this.maxTableSize = maxTableSize;
+            return this;
+        }
+
+        /**
+         * Sets ratio of sizes of adjacent levels of leveled compaction, must be at least 2.
+         */
+        @NotNull
+        public Builder levelSizeMultiplier(final int levelSizeMultiplier) {
+            if (levelSizeMultiplier < 2) {
+                throw new IllegalArgumentException("Level size multiplier must be at least 2: " + levelSizeMultiplier);
+            }
+            this.levelSizeMultiplier = levelSizeMultiplier;
+            return this;
+        }
+
+        /**
+         * Sets when logged writes are forced to disk.
+         */
+        @NotNull
+        public Builder syncPolicy(@NotNull final SyncPolicy syncPolicy) {
+            this.syncPolicy = syncPolicy;
+            return this;
+        }
+
+        /**
+         * Sets milliseconds between syncs of the log with {@link SyncPolicy#PERIODIC}, must be positive.
+         */
+        @NotNull
+        public Builder syncPeriod(final long syncPeriod) {
+            if (syncPeriod <= 0L) {
+                throw new IllegalArgumentException("Sync period must be positive: " + syncPeriod);
+            }
+            this.syncPeriod = syncPeriod;
+            return this;
+        }
+
+        /**
+         * Sets threads opening SSTables at startup, must be positive.
+         */
+        @NotNull
+        public Builder openThreads(final int openThreads) {
+            if (openThreads <= 0) {
+                throw new IllegalArgumentException("Open threads must be positive: " + openThreads);
+            }
+            this.openThreads = openThreads;
+            return this;
+        }
+
+        /**
+         * Sets whether indexes and pages of SSTables are preloaded in the background after startup.
+         */
+        @NotNull
+        public Builder warmUp(final boolean warmUp) {
+            this.warmUp = warmUp;
+            return this;
+        }
+
+        /**
+         * Sets whether MemTables copy keys and values off heap, so that larger ones
+         * do not burden the garbage collector. Such MemTables are flushed once either their heap part reaches
+         * the flush size or their slabs reach {@link #offHeapMemTableSize(long)}.
+         * Direct memory is limited by -XX:MaxDirectMemorySize.
+         */
+        @NotNull
+        public Builder offHeapMemTable(final boolean offHeapMemTable) {
+            this.offHeapMemTable = offHeapMemTable;
+            return this;
+        }
+
+        /**
+         * Sets bytes a MemTable may copy off heap before it is flushed, must be positive.
+         */
+        @NotNull
+        public Builder offHeapMemTableSize(final long offHeapMemTableSize) {
+            if (offHeapMemTableSize <= 0L) {
+                throw new IllegalArgumentException("Off-heap MemTable size must be positive: " + offHeapMemTableSize);
+            }
+            this.offHeapMemTableSize = offHeapMemTableSize;
+            return this;
+        }
+
+        /**
+         * Sets order of keys, it has to stay the same for existing storage.
+         */
+        @NotNull
+        public Builder keyOrder(@NotNull final KeyOrder keyOrder) {
+            this.keyOrder = keyOrder;
+            return this;
+        }
+
+        @NotNull
+        public Config build() {
+            return new Config(this);
+        }
+    }
+}
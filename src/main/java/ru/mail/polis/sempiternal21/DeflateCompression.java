@@ -0,0 +1,63 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link Deflater} codec storing the raw size before the deflated bytes.
+ */
+final class DeflateCompression implements Compression {
+    static final int ID = 1;
+
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer raw) {
+        final int size = raw.remaining();
+        final Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(raw.duplicate());
+        deflater.finish();
+        ByteBuffer output = ByteBuffer.allocate(Integer.BYTES + size + size / 100 + 64).putInt(size);
+        while (!deflater.finished()) {
+            if (!output.hasRemaining()) {
+                output = ByteBuffer.allocate(output.capacity() * 2).put(output.flip());
+            }
+            deflater.deflate(output);
+        }
+        return output.flip();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(@NotNull final ByteBuffer compressed) throws IOException {
+        final ByteBuffer input = compressed.duplicate();
+        final ByteBuffer output = ByteBuffer.allocate(input.getInt());
+        final Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(input);
+        try {
+            while (output.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(output) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated deflate block");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted deflate block", e);
+        }
+        return output.flip();
+    }
+}
@@ -0,0 +1,118 @@
+package ru.mail.polis.sempiternal21;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Picks the size at which the current {@link MemTable} is flushed.
+ *
+ * <p>The size never exceeds the configured maximum, but shrinks as the heap fills:
+ * the current MemTable and all the frozen ones waiting for a flush have to fit
+ * into half of the heap not taken by anything else, less what writers are expected
+ * to add until the size is revised again. The heap taken is the one which survived
+ * the last garbage collection, so garbage does not count, and only the on-heap part of MemTables
+ * is taken out of it, as bytes they keep off heap never show up there.
+ */
+final class FlushController {
+
+    private static final long MIN_THRESHOLD = 256 * 1024;
+    private static final long UPDATE_INTERVAL = 100L;
+    private static final double RATE_WEIGHT = 0.3;
+
+    private static final List<MemoryPoolMXBean> HEAP_POOLS = heapPools();
+
+    private final long maxThreshold;
+    private final int memTables;
+    private final long maxHeap;
+    private final LongSupplier liveHeap;
+    private final LongSupplier clock;
+    private final LongAdder written = new LongAdder();
+
+    private volatile long threshold;
+    private volatile long updatedAt;
+    // Bytes per millisecond
+    private double writeRate;
+
+    FlushController(
+            final long maxThreshold,
+            final int maxPendingFlushes) {
+        this(maxThreshold, maxPendingFlushes, Runtime.getRuntime().maxMemory(),
+                FlushController::liveHeap, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a controller of given heap size which reads the heap that survived the last collection
+     * and the time in milliseconds from given suppliers.
+     */
+    FlushController(
+            final long maxThreshold,
+            final int maxPendingFlushes,
+            final long maxHeap,
+            final LongSupplier liveHeap,
+            final LongSupplier clock) {
+        this.maxThreshold = maxThreshold;
+        this.memTables = maxPendingFlushes + 1;
+        this.maxHeap = maxHeap;
+        this.liveHeap = liveHeap;
+        this.clock = clock;
+        this.threshold = maxThreshold;
+        this.updatedAt = clock.getAsLong();
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        final List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private static long liveHeap() {
+        long live = 0L;
+        for (final MemoryPoolMXBean pool : HEAP_POOLS) {
+            final MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null) {
+                live += usage.getUsed();
+            }
+        }
+        return live;
+    }
+
+    void written(final long bytes) {
+        written.add(bytes);
+    }
+
+    /**
+     * Returns the size to flush at given the heap held by all MemTables now.
+     */
+    long threshold(final long memTableBytes) {
+        final long now = clock.getAsLong();
+        if (now - updatedAt >= UPDATE_INTERVAL) {
+            update(now, memTableBytes);
+        }
+        return threshold;
+    }
+
+    private synchronized void update(
+            final long now,
+            final long memTableBytes) {
+        final long elapsed = now - updatedAt;
+        if (elapsed < UPDATE_INTERVAL) {
+            return;
+        }
+        writeRate = (1 - RATE_WEIGHT) * writeRate + RATE_WEIGHT * written.sumThenReset() / elapsed;
+        final long others = Math.max(0L, liveHeap.getAsLong() - memTableBytes);
+        final long headroom = (maxHeap - others) / 2 - (long) (writeRate * UPDATE_INTERVAL);
+        final long limit = Math.max(headroom / memTables, Math.min(MIN_THRESHOLD, maxThreshold));
+        threshold = Math.min(limit, maxThreshold);
+        updatedAt = now;
+    }
+}
@@ -0,0 +1,67 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Merges all SSTables into one once there are too many of them, newer tables grow too large
+ * compared to the largest one or some table consists mostly of tombstones which may be dropped.
+ *
+ * <p>Merged data larger than {@link Config#getMaxTableSize()} is split into several tables,
+ * those of the max size are then left alone and only tables newer than them are counted and merged.
+ */
+final class FullCompaction implements CompactionStrategy {
+
+    private final Config config;
+    private final int tableCount;
+    private final double sizeRatio;
+    private final long maxTableSize;
+
+    FullCompaction(@NotNull final Config config) {
+        this.config = config;
+        this.tableCount = config.getCompactionTableCount();
+        this.sizeRatio = config.getCompactionSizeRatio();
+        this.maxTableSize = config.getMaxTableSize();
+    }
+
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final NavigableMap<Integer, SSTable> all) {
+        if (Compaction.mostTombstones(all, config) != null) {
+            return major(all);
+        }
+        NavigableMap<Integer, SSTable> tables = all;
+        for (final Map.Entry<Integer, SSTable> entry : all.descendingMap().entrySet()) {
+            if (entry.getValue().level() > 0) {
+                // Left by leveled compaction, only tables of level 0 are ordered by generation
+                return major(all);
+            }
+            if (entry.getValue().sizeInBytes() >= maxTableSize) {
+                tables = all.tailMap(entry.getKey(), false);
+                break;
+            }
+        }
+        if (tables.size() < 2) {
+            return null;
+        }
+        if (tables.size() >= tableCount) {
+            return Compaction.inPlace(tables, config);
+        }
+        long total = 0L;
+        long largest = 0L;
+        for (final SSTable table : tables.values()) {
+            total += table.sizeInBytes();
+            largest = Math.max(largest, table.sizeInBytes());
+        }
+        return total - largest >= sizeRatio * largest ? Compaction.inPlace(tables, config) : null;
+    }
+
+    @NotNull
+    @Override
+    public Compaction major(@NotNull final NavigableMap<Integer, SSTable> tables) {
+        return Compaction.inPlace(tables, config);
+    }
+}
@@ -0,0 +1,91 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * Order of keys in MemTables and SSTables.
+ *
+ * <p>Tables are written sorted, so a storage has to be opened with the order it was written with:
+ * the manifest records the name of the order and opening checks it.
+ * Keys equal in the order must be equal byte for byte.
+ */
+public interface KeyOrder extends Comparator<ByteBuffer> {
+    /**
+     * Bytes compared as signed ones, the order of {@link ru.mail.polis.Record} the DAO contract relies on.
+     */
+    KeyOrder SIGNED = of("signed", ByteBuffer::compareTo);
+
+    /**
+     * Bytes compared as unsigned ones, so that keys sort the way they do in memcmp.
+     */
+    KeyOrder UNSIGNED = of("unsigned", KeyOrder::compareUnsigned);
+
+    /**
+     * Keys of 8 bytes compared as big-endian signed longs, keys of other lengths
+     * like the empty one come first by length and then as unsigned bytes.
+     */
+    KeyOrder INT64 = of("int64", (left, right) -> {
+        final int length = Integer.compare(left.remaining(), right.remaining());
+        if (length != 0) {
+            return length;
+        }
+        if (left.remaining() == Long.BYTES) {
+            return Long.compare(left.getLong(left.position()), right.getLong(right.position()));
+        }
+        return compareUnsigned(left, right);
+    });
+
+    /**
+     * Returns the name the storage records, distinct for every order.
+     */
+    @NotNull
+    String name();
+
+    /**
+     * Returns the order of given name comparing keys with the comparator.
+     */
+    @NotNull
+    static KeyOrder of(
+            @NotNull final String name,
+            @NotNull final Comparator<ByteBuffer> comparator) {
+        return new KeyOrder() {
+            @Override
+            public int compare(
+                    final ByteBuffer left,
+                    final ByteBuffer right) {
+                return comparator.compare(left, right);
+            }
+
+            @NotNull
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+
+    /**
+     * Compares remaining bytes as unsigned ones, looking for the first mismatch a word at a time.
+     */
+    static int compareUnsigned(
+            @NotNull final ByteBuffer left,
+            @NotNull final ByteBuffer right) {
+        final int mismatch = left.mismatch(right);
+        if (mismatch < 0) {
+            return 0;
+        }
+        if (mismatch < left.remaining() && mismatch < right.remaining()) {
+            return Byte.toUnsignedInt(left.get(left.position() + mismatch))
+                    - Byte.toUnsignedInt(right.get(right.position() + mismatch));
+        }
+        return left.remaining() - right.remaining();
+    }
+}
@@ -0,0 +1,172 @@
+package ru.mail.polis.sempiternal21;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * SSTables of one level of the LSM tree.
+ *
+ * <p>Tables of levels deeper than 0 cover disjoint key ranges, so a key is looked up in one of them
+ * and a scan reads them one after another. Level 0 and levels left overlapping by an interrupted
+ * compaction fall back to checking every table from the newest to the oldest.
+ */
+final class Level {
+
+    // From the newest to the oldest
+    private final List<SSTable> tables;
+    // By min key if tables do not overlap
+    @Nullable
+    private final NavigableMap<ByteBuffer, SSTable> ranges;
+    private final long sizeInBytes;
+
+    /**
+     * Creates a level of given tables ordered from the newest to the oldest.
+     */
+    Level(
+            @NotNull final Collection<SSTable> newestFirst,
+            @NotNull final KeyOrder order) {
+        this.tables = new ArrayList<>(newestFirst.size());
+        NavigableMap<ByteBuffer, SSTable> byMinKey = new TreeMap<>(order);
+        long size = 0L;
+        for (final SSTable table : newestFirst) {
+            size += table.sizeInBytes();
+            final ByteBuffer minKey = table.minKey();
+            if (minKey == null) {
+                continue;
+            }
+            tables.add(table);
+            if (byMinKey != null && byMinKey.put(minKey, table) != null) {
+                byMinKey = null;
+            }
+        }
+        this.sizeInBytes = size;
+        this.ranges = byMinKey != null && disjoint(byMinKey, order) ? byMinKey : null;
+    }
+
+    private static boolean disjoint(
+            @NotNull final NavigableMap<ByteBuffer, SSTable> byMinKey,
+            @NotNull final KeyOrder order) {
+        ByteBuffer previous = null;
+        for (final SSTable table : byMinKey.values()) {
+            final ByteBuffer minKey = table.minKey();
+            if (previous != null && minKey != null && order.compare(previous, minKey) >= 0) {
+                return false;
+            }
+            previous = table.maxKey();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the total size of tables including empty ones.
+     */
+    long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Returns the newest cell with given key or null if there is none.
+     */
+    @Nullable
+    Cell get(@NotNull final ByteBuffer key) throws IOException {
+        if (ranges != null) {
+            final Map.Entry<ByteBuffer, SSTable> entry = ranges.floorEntry(key);
+            return entry == null ? null : entry.getValue().get(key);
+        }
+        for (final SSTable table : tables) {
+            final Cell cell = table.get(key);
+            if (cell != null) {
+                return cell;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds iterators over cells from "from" key of tables which overlap [from, to)
+     * in the order of precedence, null "to" stands for no upper bound.
+     */
+    void addIterators(
+            @NotNull final List<Iterator<Cell>> iters,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (ranges == null) {
+            for (final SSTable table : tables) {
+                if (table.overlaps(from, to)) {
+                    iters.add(table.iterator(from));
+                }
+            }
+            return;
+        }
+        final Collection<SSTable> overlapping = overlapping(ranges, from, to).values();
+        if (overlapping.isEmpty()) {
+            return;
+        }
+        final Iterator<Iterator<Cell>> chain = Iterators.transform(overlapping.iterator(), table -> {
+            try {
+                return table.iterator(from);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        iters.add(Iterators.concat(chain));
+    }
+
+    /**
+     * Adds iterators over cells before "to" key in descending order of tables which overlap [from, to)
+     * in the order of precedence, null "to" stands for no upper bound.
+     */
+    void addDescendingIterators(
+            @NotNull final List<Iterator<Cell>> iters,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (ranges == null) {
+            for (final SSTable table : tables) {
+                if (table.overlaps(from, to)) {
+                    iters.add(table.descendingIterator(to));
+                }
+            }
+            return;
+        }
+        final Collection<SSTable> overlapping = overlapping(ranges, from, to).descendingMap().values();
+        if (overlapping.isEmpty()) {
+            return;
+        }
+        final Iterator<Iterator<Cell>> chain = Iterators.transform(overlapping.iterator(), table -> {
+            try {
+                return table.descendingIterator(to);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        iters.add(Iterators.concat(chain));
+    }
+
+    /**
+     * Returns disjoint tables which may have keys in [from, to) by min key.
+     */
+    @NotNull
+    private static NavigableMap<ByteBuffer, SSTable> overlapping(
+            @NotNull final NavigableMap<ByteBuffer, SSTable> ranges,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final Map.Entry<ByteBuffer, SSTable> floor = ranges.floorEntry(from);
+        // The table starting before "from" may end before it too
+        final boolean skipFloor = floor == null || !floor.getValue().overlaps(from, to);
+        final NavigableMap<ByteBuffer, SSTable> tail =
+                floor == null ? ranges : ranges.tailMap(floor.getKey(), !skipFloor);
+        return to == null ? tail : tail.headMap(to, false);
+    }
+}
@@ -0,0 +1,144 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Keeps SSTables in levels of disjoint tables of about {@link Config#getTargetTableSize()} bytes,
+ * level 1 holding up to {@link Config#getLevelSizeMultiplier()} tables and each next level
+ * that many times more.
+ *
+ * <p>Once level 0 collects {@link Config#getCompactionTableCount()} flushed tables they are merged
+ * with overlapping tables of level 1. Once a deeper level outgrows its limit its oldest table
+ * is merged with overlapping tables of the next level. So a cell is rewritten about
+ * the multiplier times per level rather than on every compaction.
+ */
+final class LeveledCompaction implements CompactionStrategy {
+
+    private final Config config;
+    private final int level0Tables;
+    private final long tableSize;
+    private final int multiplier;
+    private final KeyOrder order;
+
+    LeveledCompaction(@NotNull final Config config) {
+        this.config = config;
+        this.level0Tables = config.getCompactionTableCount();
+        this.tableSize = config.getTargetTableSize();
+        this.multiplier = config.getLevelSizeMultiplier();
+        this.order = config.getKeyOrder();
+    }
+
+    /**
+     * Pushes the table with most tombstones to the next level first, so that they reach
+     * the deepest level where they may be dropped.
+     */
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final NavigableMap<Integer, SSTable> tables) {
+        final List<NavigableMap<Integer, SSTable>> levels = byLevel(tables);
+        final Integer tombstones = Compaction.mostTombstones(tables, config);
+        if (tombstones != null) {
+            final SSTable table = tables.get(tombstones);
+            final int level = table.level();
+            if (level == 0) {
+                return into(levels, levels.get(0), 1);
+            }
+            return into(levels, overlapping(levels.get(level), table.minKey(), table.maxKey()), level + 1);
+        }
+        if (levels.get(0).size() >= level0Tables) {
+            return into(levels, levels.get(0), 1);
+        }
+        long capacity = tableSize;
+        for (int level = 1; level < levels.size(); level++) {
+            capacity *= multiplier;
+            final NavigableMap<Integer, SSTable> tablesOfLevel = levels.get(level);
+            long size = 0L;
+            for (final SSTable table : tablesOfLevel.values()) {
+                size += table.sizeInBytes();
+            }
+            if (size > capacity) {
+                final SSTable oldest = tablesOfLevel.firstEntry().getValue();
+                return into(levels, overlapping(tablesOfLevel, oldest.minKey(), oldest.maxKey()), level + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Merges everything into the deepest level.
+     */
+    @NotNull
+    @Override
+    public Compaction major(@NotNull final NavigableMap<Integer, SSTable> tables) {
+        return new Compaction(tables, Math.max(byLevel(tables).size() - 1, 1), tableSize);
+    }
+
+    @NotNull
+    private static List<NavigableMap<Integer, SSTable>> byLevel(@NotNull final NavigableMap<Integer, SSTable> tables) {
+        final List<NavigableMap<Integer, SSTable>> levels = new ArrayList<>();
+        levels.add(new TreeMap<>());
+        for (final Map.Entry<Integer, SSTable> entry : tables.entrySet()) {
+            final int level = entry.getValue().level();
+            while (levels.size() <= level) {
+                levels.add(new TreeMap<>());
+            }
+            levels.get(level).put(entry.getKey(), entry.getValue());
+        }
+        return levels;
+    }
+
+    /**
+     * Merges given tables with overlapping tables of the target level.
+     */
+    @NotNull
+    private Compaction into(
+            @NotNull final List<NavigableMap<Integer, SSTable>> levels,
+            @NotNull final NavigableMap<Integer, SSTable> sources,
+            final int level) {
+        ByteBuffer min = null;
+        ByteBuffer max = null;
+        for (final SSTable table : sources.values()) {
+            final ByteBuffer minKey = table.minKey();
+            final ByteBuffer maxKey = table.maxKey();
+            if (minKey != null && maxKey != null) {
+                min = min == null || order.compare(minKey, min) < 0 ? minKey : min;
+                max = max == null || order.compare(maxKey, max) > 0 ? maxKey : max;
+            }
+        }
+        final NavigableMap<Integer, SSTable> inputs = new TreeMap<>(sources);
+        if (level < levels.size()) {
+            inputs.putAll(overlapping(levels.get(level), min, max));
+        }
+        return new Compaction(inputs, level, tableSize);
+    }
+
+    /**
+     * Returns tables with keys in [min, max], empty tables are taken too to get rid of them.
+     */
+    @NotNull
+    private NavigableMap<Integer, SSTable> overlapping(
+            @NotNull final NavigableMap<Integer, SSTable> tables,
+            @Nullable final ByteBuffer min,
+            @Nullable final ByteBuffer max) {
+        final NavigableMap<Integer, SSTable> result = new TreeMap<>();
+        for (final Map.Entry<Integer, SSTable> entry : tables.entrySet()) {
+            final ByteBuffer minKey = entry.getValue().minKey();
+            final ByteBuffer maxKey = entry.getValue().maxKey();
+            if (minKey == null
+                    || maxKey == null
+                    || (min != null && max != null
+                        && order.compare(minKey, max) <= 0 && order.compare(maxKey, min) >= 0)) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+}
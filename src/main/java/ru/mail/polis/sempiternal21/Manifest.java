@@ -0,0 +1,435 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Edit log of the live SSTables of {@link MyDAO}, so that opening the storage
+ * does not depend on listing the directory.
+ *
+ * <p>Every flush and compaction commits by appending one record: the next free generation,
+ * the sequence of the oldest log not flushed yet, generations of removed SSTables
+ * and generation, level and file name of added ones, optionally followed by range tombstones
+ * added and removed and then by the name of the {@link KeyOrder}. Records are framed
+ * like {@link WriteAheadLog} records, replay stops at the first torn one.
+ *
+ * <p>On opening and once the log grows too large it is rewritten as a single record
+ * holding the whole state. Files of SSTables it does not list are deleted on opening in case
+ * a crash left them behind, be they removed ones or outputs never committed.
+ * The directory is forced to disk before a record names renamed files and after a rewrite.
+ */
+final class Manifest implements Closeable {
+
+    static final String NAME = "MANIFEST";
+    private static final String TEMP = NAME + ".tmp";
+    private static final Logger logger = LoggerFactory.getLogger(Manifest.class);
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final long MAX_SIZE = 1024 * 1024;
+    // Tables and their temporary files, see MyDAO
+    private static final Pattern TABLE = Pattern.compile("\\d+\\.(dat|tmp)");
+    // Directories can not be opened there
+    private static final boolean WINDOWS = System.getProperty("os.name").startsWith("Windows");
+
+    private final File storage;
+    private FileChannel channel;
+    private long size;
+
+    // State after all the records
+    private final NavigableMap<Integer, Entry> live;
+    private final List<RangeTombstone> rangeTombstones;
+    @NotNull
+    private final String keyOrder;
+    private int generation;
+    private int logSequence;
+
+    private Manifest(
+            @NotNull final File storage,
+            @NotNull final NavigableMap<Integer, Entry> live,
+            @NotNull final List<RangeTombstone> rangeTombstones,
+            @NotNull final String keyOrder,
+            final int generation,
+            final int logSequence) throws IOException {
+        this.storage = storage;
+        this.live = live;
+        this.rangeTombstones = rangeTombstones;
+        this.keyOrder = keyOrder;
+        this.generation = generation;
+        this.logSequence = logSequence;
+        rewrite();
+    }
+
+    /**
+     * SSTable as recorded in the manifest.
+     */
+    static final class Entry {
+        @NotNull
+        final String name;
+        final int level;
+
+        Entry(
+                @NotNull final String name,
+                final int level) {
+            this.name = name;
+            this.level = level;
+        }
+    }
+
+    static boolean exists(@NotNull final File storage) {
+        return new File(storage, NAME).exists();
+    }
+
+    /**
+     * Starts a manifest of given SSTables sorted in given order, replacing an existing one.
+     */
+    @NotNull
+    static Manifest create(
+            @NotNull final File storage,
+            @NotNull final Map<Integer, SSTable> ssTables,
+            @NotNull final KeyOrder order,
+            final int generation,
+            final int logSequence) throws IOException {
+        final NavigableMap<Integer, Entry> live = new TreeMap<>();
+        for (final Map.Entry<Integer, SSTable> entry : ssTables.entrySet()) {
+            live.put(entry.getKey(), entry(entry.getValue()));
+        }
+        return new Manifest(storage, live, new ArrayList<>(), order.name(), generation, logSequence);
+    }
+
+    /**
+     * Replays the manifest of the storage and deletes files of SSTables it does not list.
+     * A manifest which does not name the key order yet is taken to be written in given one.
+     *
+     * @throws IllegalArgumentException if the storage was written in another key order
+     */
+    @NotNull
+    static Manifest open(
+            @NotNull final File storage,
+            @NotNull final KeyOrder order) throws IOException {
+        final File file = new File(storage, NAME);
+        final ByteBuffer records;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        final NavigableMap<Integer, Entry> live = new TreeMap<>();
+        final List<RangeTombstone> rangeTombstones = new ArrayList<>();
+        String keyOrder = null;
+        int generation = 0;
+        int logSequence = 0;
+        while (records.remaining() >= HEADER_SIZE) {
+            final int bodySize = records.getInt();
+            final int checksum = records.getInt();
+            if (bodySize < 0 || bodySize > records.remaining()) {
+                logger.warn("Torn record at {} of {}", records.position() - HEADER_SIZE, file);
+                break;
+            }
+            final ByteBuffer body = records.slice().limit(bodySize);
+            records.position(records.position() + bodySize);
+            final CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("Corrupted record at {} of {}", records.position() - bodySize - HEADER_SIZE, file);
+                break;
+            }
+            generation = Math.max(generation, body.getInt());
+            logSequence = Math.max(logSequence, body.getInt());
+            final int removedCount = body.getInt();
+            for (int i = 0; i < removedCount; i++) {
+                live.remove(body.getInt());
+            }
+            final int addedCount = body.getInt();
+            for (int i = 0; i < addedCount; i++) {
+                final int gen = body.getInt();
+                final int level = body.getInt();
+                final byte[] name = new byte[body.getInt()];
+                body.get(name);
+                live.put(gen, new Entry(new String(name, StandardCharsets.UTF_8), level));
+            }
+            if (body.hasRemaining()) {
+                final int addedRanges = body.getInt();
+                for (int i = 0; i < addedRanges; i++) {
+                    rangeTombstones.add(readRangeTombstone(body));
+                }
+                final int removedRanges = body.getInt();
+                for (int i = 0; i < removedRanges; i++) {
+                    rangeTombstones.remove(readRangeTombstone(body));
+                }
+            }
+            if (body.hasRemaining()) {
+                final byte[] name = new byte[body.getInt()];
+                body.get(name);
+                keyOrder = new String(name, StandardCharsets.UTF_8);
+            }
+        }
+        if (keyOrder != null && !keyOrder.equals(order.name())) {
+            throw new IllegalArgumentException("Storage " + storage + " is sorted in " + keyOrder
+                    + " key order, not in " + order.name());
+        }
+        final Manifest manifest = new Manifest(storage, live, rangeTombstones, order.name(), generation, logSequence);
+        final Set<String> names = new HashSet<>();
+        for (final Entry entry : live.values()) {
+            names.add(entry.name);
+        }
+        final File[] orphans = storage.listFiles((dir, name) -> TABLE.matcher(name).matches() && !names.contains(name));
+        if (orphans != null) {
+            for (final File orphan : orphans) {
+                logger.info("Deleting {} missing from {}", orphan, file);
+                Files.deleteIfExists(orphan.toPath());
+            }
+        }
+        return manifest;
+    }
+
+    @NotNull
+    private static RangeTombstone readRangeTombstone(@NotNull final ByteBuffer body) {
+        final ByteBuffer from = readKey(body);
+        final ByteBuffer to = readKey(body);
+        return new RangeTombstone(requireNonNull(from), to, body.getLong());
+    }
+
+    /**
+     * Reads a key written by {@link #putKey(ByteBuffer, ByteBuffer)}.
+     */
+    @Nullable
+    private static ByteBuffer readKey(@NotNull final ByteBuffer body) {
+        final int size = body.getInt();
+        if (size < 0) {
+            return null;
+        }
+        final ByteBuffer key = body.slice().limit(size);
+        body.position(body.position() + size);
+        return key;
+    }
+
+    /**
+     * Writes the size of the key, -1 for null, and the key.
+     */
+    private static void putKey(
+            @NotNull final ByteBuffer record,
+            @Nullable final ByteBuffer key) {
+        if (key == null) {
+            record.putInt(-1);
+        } else {
+            record.putInt(key.remaining());
+            record.put(key);
+        }
+    }
+
+    private static int sizeOf(@NotNull final Collection<RangeTombstone> tombstones) {
+        int size = Integer.BYTES;
+        for (final RangeTombstone tombstone : tombstones) {
+            final ByteBuffer to = tombstone.to();
+            size += 2 * Integer.BYTES + tombstone.from().remaining() + (to == null ? 0 : to.remaining()) + Long.BYTES;
+        }
+        return size;
+    }
+
+    private static void putRangeTombstones(
+            @NotNull final ByteBuffer record,
+            @NotNull final Collection<RangeTombstone> tombstones) {
+        record.putInt(tombstones.size());
+        for (final RangeTombstone tombstone : tombstones) {
+            putKey(record, tombstone.from());
+            putKey(record, tombstone.to());
+            record.putLong(tombstone.timestamp());
+        }
+    }
+
+    @NotNull
+    private static Entry entry(@NotNull final SSTable table) {
+        return new Entry(table.file().getName(), table.level());
+    }
+
+    /**
+     * Returns live SSTables by generation.
+     */
+    @NotNull
+    synchronized NavigableMap<Integer, Entry> live() {
+        return Collections.unmodifiableNavigableMap(new TreeMap<>(live));
+    }
+
+    synchronized int generation() {
+        return generation;
+    }
+
+    /**
+     * Returns live range tombstones in the order they were added.
+     */
+    @NotNull
+    synchronized List<RangeTombstone> rangeTombstones() {
+        return List.copyOf(rangeTombstones);
+    }
+
+    /**
+     * Returns the sequence of the oldest log which may hold cells missing from SSTables.
+     */
+    synchronized int logSequence() {
+        return logSequence;
+    }
+
+    /**
+     * Durably records SSTables replaced by the outputs along with the generation
+     * and log sequence which only ever grow.
+     */
+    synchronized void commit(
+            @NotNull final Collection<Integer> removed,
+            @NotNull final Map<Integer, SSTable> added,
+            final int nextGeneration,
+            final int nextLogSequence) throws IOException {
+        final NavigableMap<Integer, Entry> entries = new TreeMap<>();
+        for (final Map.Entry<Integer, SSTable> entry : added.entrySet()) {
+            entries.put(entry.getKey(), entry(entry.getValue()));
+        }
+        if (!added.isEmpty()) {
+            // Files were renamed into place
+            syncDirectory();
+        }
+        generation = Math.max(generation, nextGeneration);
+        logSequence = Math.max(logSequence, nextLogSequence);
+        live.keySet().removeAll(removed);
+        live.putAll(entries);
+        append(record(removed, entries, Collections.emptyList(), Collections.emptyList(), null));
+    }
+
+    /**
+     * Durably records range tombstones added and removed.
+     */
+    synchronized void commitRangeTombstones(
+            @NotNull final Collection<RangeTombstone> added,
+            @NotNull final Collection<RangeTombstone> removed) throws IOException {
+        rangeTombstones.addAll(added);
+        rangeTombstones.removeAll(removed);
+        append(record(Collections.emptyList(), Collections.emptyMap(), added, removed, null));
+    }
+
+    private void append(@NotNull final ByteBuffer record) throws IOException {
+        if (size > MAX_SIZE) {
+            channel.close();
+            rewrite();
+            return;
+        }
+        size += record.remaining();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+    }
+
+    @NotNull
+    private ByteBuffer record(
+            @NotNull final Collection<Integer> removed,
+            @NotNull final Map<Integer, Entry> added,
+            @NotNull final Collection<RangeTombstone> addedRanges,
+            @NotNull final Collection<RangeTombstone> removedRanges,
+            @Nullable final String order) {
+        final byte[] orderName = order == null ? null : order.getBytes(StandardCharsets.UTF_8);
+        final boolean ranges = !addedRanges.isEmpty() || !removedRanges.isEmpty() || orderName != null;
+        int bodySize = 4 * Integer.BYTES + removed.size() * Integer.BYTES;
+        if (ranges) {
+            bodySize += sizeOf(addedRanges) + sizeOf(removedRanges);
+        }
+        if (orderName != null) {
+            bodySize += Integer.BYTES + orderName.length;
+        }
+        final List<byte[]> names = new ArrayList<>(added.size());
+        for (final Entry entry : added.values()) {
+            final byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            bodySize += 3 * Integer.BYTES + name.length;
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bodySize);
+        record.putInt(bodySize);
+        record.putInt(0);
+        record.putInt(generation);
+        record.putInt(logSequence);
+        record.putInt(removed.size());
+        for (final int gen : removed) {
+            record.putInt(gen);
+        }
+        record.putInt(added.size());
+        int i = 0;
+        for (final Map.Entry<Integer, Entry> entry : added.entrySet()) {
+            final byte[] name = names.get(i++);
+            record.putInt(entry.getKey());
+            record.putInt(entry.getValue().level);
+            record.putInt(name.length);
+            record.put(name);
+        }
+        if (ranges) {
+            putRangeTombstones(record, addedRanges);
+            putRangeTombstones(record, removedRanges);
+        }
+        if (orderName != null) {
+            record.putInt(orderName.length);
+            record.put(orderName);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(record.duplicate().flip().position(HEADER_SIZE));
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        return record.flip();
+    }
+
+    /**
+     * Atomically replaces the manifest with a single record of the current state and the key order.
+     */
+    private void rewrite() throws IOException {
+        final ByteBuffer record =
+                record(Collections.emptyList(), live, rangeTombstones, Collections.emptyList(), keyOrder);
+        final File tmp = new File(storage, TEMP);
+        try (FileChannel out = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (record.hasRemaining()) {
+                out.write(record);
+            }
+            out.force(false);
+        }
+        final File file = new File(storage, NAME);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+    }
+
+    /**
+     * Forces names of files renamed into the storage to disk, so that a crash does not undo the renames.
+     */
+    private void syncDirectory() throws IOException {
+        if (WINDOWS) {
+            return;
+        }
+        try (FileChannel directory = FileChannel.open(storage.toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
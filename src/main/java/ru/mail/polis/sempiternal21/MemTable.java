@@ -1,50 +1,236 @@
 package ru.mail.polis.sempiternal21;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 
+/**
+ * Lock-free sorted in-memory table, safe for concurrent writers and readers.
+ *
+ * <p>Given an {@link Arena} keys and values are copied off heap, otherwise the table
+ * keeps views of the buffers it was given. Either way entries stay skip list nodes
+ * with buffer views and values on the heap, only the bytes move.
+ *
+ * <p>A value replaced while a snapshot may still read it is kept behind the new one,
+ * reads at a timestamp return the newest version written no later than that.
+ *
+ * <p>The heap size counts the bytes of keys and values along with the objects holding them,
+ * as laid out by a 64-bit JVM with compressed references. Bytes copied off heap are counted
+ * by the slabs holding them instead, replaced ones included, as slabs are never reused.
+ */
 final class MemTable implements Table {
 
-    private final SortedMap<ByteBuffer, Value> map = new TreeMap<>();
-    private long sizeInBytes;
+    // Skip list node with key, value and next references
+    private static final long NODE_SIZE = 24L;
+    // Skip list index nodes of 24 bytes are built for about a third of nodes
+    private static final long INDEX_SIZE = 8L;
+    // Value with timestamp, data and older version references
+    private static final long VALUE_SIZE = 32L;
+    // Heap or direct buffer view
+    private static final long BUFFER_SIZE = 64L;
+    private static final long ARRAY_HEADER = 16L;
+    private static final long EMPTY_SIZE = 128L;
 
-    MemTable() {
-        sizeInBytes = 720L;
+    private final NavigableMap<ByteBuffer, Value> map;
+    private final AtomicLong heapBytes;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong minTimestamp = new AtomicLong(Long.MAX_VALUE);
+    @Nullable
+    private final Arena arena;
+    @NotNull
+    private final KeyOrder order;
+
+    MemTable(@NotNull final KeyOrder order) {
+        this(null, order);
+    }
+
+    MemTable(
+            @Nullable final Arena arena,
+            @NotNull final KeyOrder order) {
+        this.arena = arena;
+        this.order = order;
+        this.map = new ConcurrentSkipListMap<>(order);
+        heapBytes = new AtomicLong(EMPTY_SIZE);
     }
 
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
-        return map.tailMap(from)
-                .entrySet()
+        return iterator(from, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns cells starting at "from" key as they were at given timestamp.
+     */
+    @NotNull
+    Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            final long at) {
+        return cells(map.tailMap(from, true), at);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(@Nullable final ByteBuffer to) {
+        return descendingIterator(to, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns cells before "to" key in descending order as they were at given timestamp.
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(
+            @Nullable final ByteBuffer to,
+            final long at) {
+        final NavigableMap<ByteBuffer, Value> head = to == null ? map : map.headMap(to, false);
+        return cells(head.descendingMap(), at);
+    }
+
+    @NotNull
+    private static Iterator<Cell> cells(
+            @NotNull final NavigableMap<ByteBuffer, Value> values,
+            final long at) {
+        return values.entrySet()
                 .stream()
-                .map(element -> new Cell(element.getKey(), element.getValue()))
+                .map(element -> {
+                    final Value value = element.getValue().at(at);
+                    return value == null ? null : new Cell(element.getKey(), value);
+                })
+                .filter(Objects::nonNull)
                 .iterator();
     }
 
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        return get(key, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the cell of the key as it was at given timestamp.
+     */
+    @Nullable
+    Cell get(
+            @NotNull final ByteBuffer key,
+            final long at) {
+        final Value value = map.get(key);
+        final Value version = value == null ? null : value.at(at);
+        return version == null ? null : new Cell(key, version);
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value previous = map.put(key.duplicate(), new Value(System.currentTimeMillis(), value.duplicate()));
-        sizeInBytes += value.remaining();
-        if (previous == null) {
-            sizeInBytes += key.remaining() + Long.BYTES;
-        } else if (!previous.isTombstone()) {
-            sizeInBytes -= previous.getData().remaining();
-        }
+        put(key, new Value(System.currentTimeMillis(), value.duplicate()));
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) {
-        final Value previous = map.put(key.duplicate(), new Value(System.currentTimeMillis()));
+        put(key, new Value(System.currentTimeMillis()));
+    }
+
+    /**
+     * Stores the value of given timestamp, possibly a tombstone, replacing the previous one.
+     */
+    void put(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        put(key, value, 0L);
+    }
+
+    /**
+     * Stores the value keeping the previous one if it was written at or before given timestamp.
+     */
+    void put(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value,
+            final long keepUntil) {
+        heapBytes.addAndGet(insert(key, value, keepUntil));
+    }
+
+    /**
+     * Stores all cells of given iterator, accounting their size at once,
+     * previous values written at or before given timestamp are kept.
+     */
+    void putAll(
+            @NotNull final Iterator<Cell> cells,
+            final long keepUntil) {
+        long delta = 0L;
+        while (cells.hasNext()) {
+            final Cell cell = cells.next();
+            delta += insert(cell.getKey(), cell.getValue(), keepUntil);
+        }
+        heapBytes.addAndGet(delta);
+    }
+
+    /**
+     * Stores the value and returns the change of the size.
+     */
+    private long insert(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value,
+            final long keepUntil) {
+        final Value copy = arena == null || value.isTombstone()
+                ? value
+                : new Value(value.getTimestamp(), arena.copy(value.getData()));
+        final Value previous;
+        final Value kept;
+        if (arena == null && keepUntil == 0L) {
+            previous = map.put(key.duplicate(), copy);
+            kept = null;
+        } else {
+            // The function may be retried, the last call sees the value replaced
+            final Value[] replaced = new Value[2];
+            final BiFunction<ByteBuffer, Value, Value> replace = (k, old) -> {
+                // Versions written after the newest snapshot are not read by any
+                final Value version = keepUntil == 0L ? null : old.at(keepUntil);
+                replaced[0] = old;
+                replaced[1] = version;
+                return version == null ? copy : copy.replacing(version);
+            };
+            // The map keeps the key it has, so only a new key is copied
+            while (map.computeIfPresent(key, replace) == null) {
+                if (map.putIfAbsent(arena == null ? key.duplicate() : arena.copy(key), copy) == null) {
+                    replaced[0] = null;
+                    replaced[1] = null;
+                    break;
+                }
+            }
+            previous = replaced[0];
+            kept = replaced[1];
+        }
+        if (value.getTimestamp() < minTimestamp.get()) {
+            minTimestamp.accumulateAndGet(value.getTimestamp(), Math::min);
+        }
+        long delta = sizeOf(value);
         if (previous == null) {
-            sizeInBytes += key.remaining();
-        } else if (!previous.isTombstone()) {
-            sizeInBytes -= previous.getData().remaining();
+            delta += NODE_SIZE + INDEX_SIZE + BUFFER_SIZE + (arena == null ? bytes(key.remaining()) : 0L);
+            size.incrementAndGet();
         }
+        // Versions up to the kept one are dropped, the rest are still referenced by the new value
+        for (Value version = previous; version != null && version != kept; version = version.older()) {
+            delta -= sizeOf(version);
+        }
+        return delta;
+    }
+
+    private long sizeOf(@NotNull final Value value) {
+        if (value.isTombstone()) {
+            return VALUE_SIZE;
+        }
+        return VALUE_SIZE + BUFFER_SIZE + (arena == null ? bytes(value.getData().remaining()) : 0L);
+    }
+
+    /**
+     * Returns the size of an array of given length aligned to 8 bytes.
+     */
+    private static long bytes(final int length) {
+        return (ARRAY_HEADER + length + 7L) & ~7L;
     }
 
     @Override
@@ -52,11 +238,40 @@ final class MemTable implements Table {
         map.clear();
     }
 
+    @NotNull
+    KeyOrder order() {
+        return order;
+    }
+
     int size() {
-        return map.size();
+        return size.get();
     }
 
+    /**
+     * Returns the bytes taken on and off heap.
+     */
     long sizeInBytes() {
-        return sizeInBytes;
+        return heapBytes() + offHeapBytes();
+    }
+
+    /**
+     * Returns the bytes taken on the heap by entries.
+     */
+    long heapBytes() {
+        return heapBytes.get();
+    }
+
+    /**
+     * Returns the bytes of slabs holding keys and values copied off heap.
+     */
+    long offHeapBytes() {
+        return arena == null ? 0L : arena.allocated();
+    }
+
+    /**
+     * Returns the earliest timestamp of cells put so far, {@link Long#MAX_VALUE} if there are none.
+     */
+    long minTimestamp() {
+        return minTimestamp.get();
     }
 }
@@ -0,0 +1,128 @@
+package ru.mail.polis.sempiternal21;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges sorted iterators of cells given from the newest table to the oldest one
+ * and returns a single cell per key.
+ *
+ * <p>Unlike {@link Iterators#mergeSorted} equal keys are ordered by their tables,
+ * so the cell of the newest table wins even if it was written within the same millisecond.
+ * Older cells of the key are skipped right in the queue, keys are compared in place.
+ * An ascending merge stops before the upper bound and a descending one after the lower bound
+ * if one is given.
+ */
+final class MergeIterator implements Iterator<Cell> {
+
+    private final PriorityQueue<Source> queue;
+    @NotNull
+    private final Comparator<ByteBuffer> order;
+    @Nullable
+    private final ByteBuffer bound;
+    private final boolean inclusive;
+
+    private MergeIterator(
+            @NotNull final List<Iterator<Cell>> iterators,
+            @NotNull final Comparator<ByteBuffer> order,
+            @Nullable final ByteBuffer bound,
+            final boolean inclusive) {
+        this.queue = new PriorityQueue<>(Math.max(iterators.size(), 1));
+        this.order = order;
+        this.bound = bound;
+        this.inclusive = inclusive;
+        for (int i = 0; i < iterators.size(); i++) {
+            final Iterator<Cell> iterator = iterators.get(i);
+            if (iterator.hasNext()) {
+                queue.add(new Source(i, iterator));
+            }
+        }
+    }
+
+    /**
+     * Merges iterators of cells in ascending order until "to" key exclusive, null stands for no bound.
+     */
+    @NotNull
+    static MergeIterator ascending(
+            @NotNull final List<Iterator<Cell>> iterators,
+            @NotNull final KeyOrder order,
+            @Nullable final ByteBuffer to) {
+        return new MergeIterator(iterators, order, to, false);
+    }
+
+    /**
+     * Merges iterators of cells in descending order down to "from" key inclusive.
+     */
+    @NotNull
+    static MergeIterator descending(
+            @NotNull final List<Iterator<Cell>> iterators,
+            @NotNull final KeyOrder order,
+            @NotNull final ByteBuffer from) {
+        return new MergeIterator(iterators, order.reversed(), from, true);
+    }
+
+    @Override
+    public boolean hasNext() {
+        final Source source = queue.peek();
+        if (source == null) {
+            return false;
+        }
+        if (bound == null) {
+            return true;
+        }
+        final int cmp = source.current.compareKeyTo(bound, order);
+        return inclusive ? cmp <= 0 : cmp < 0;
+    }
+
+    @Override
+    public Cell next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("End of merge");
+        }
+        final Source source = queue.remove();
+        final Cell result = source.current;
+        advance(source);
+        Source older = queue.peek();
+        while (older != null && older.current.compareKeyTo(result, order) == 0) {
+            queue.poll();
+            advance(older);
+            older = queue.peek();
+        }
+        return result;
+    }
+
+    private void advance(@NotNull final Source source) {
+        if (source.cells.hasNext()) {
+            source.current = source.cells.next();
+            queue.add(source);
+        }
+    }
+
+    private final class Source implements Comparable<Source> {
+        private final int index;
+        private final Iterator<Cell> cells;
+        private Cell current;
+
+        Source(
+                final int index,
+                @NotNull final Iterator<Cell> cells) {
+            this.index = index;
+            this.cells = cells;
+            this.current = cells.next();
+        }
+
+        @Override
+        public int compareTo(@NotNull final Source other) {
+            final int cmp = current.compareKeyTo(other.current, order);
+            return cmp == 0 ? Integer.compare(index, other.index) : cmp;
+        }
+    }
+}
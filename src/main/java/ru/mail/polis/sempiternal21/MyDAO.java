@@ -1,153 +1,1012 @@
 package ru.mail.polis.sempiternal21;
 
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.DAO;
 import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+import ru.mail.polis.WriteBatch;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static java.util.Objects.requireNonNull;
 
+/**
+ * LSM storage which may be used by many threads at once.
+ *
+ * <p>Writers put cells into a lock-free MemTable under a shared lock while
+ * the set of tables is replaced with a new snapshot under the exclusive one.
+ * Readers take the current snapshot without locking.
+ *
+ * <p>A full MemTable is frozen and written to disk by a background thread
+ * while staying readable, writers stall only if too many of them are pending.
+ * Another background thread merges SSTables picked by the {@link CompactionStrategy}.
+ */
 public class MyDAO implements DAO {
     private static final String SUFFIX = ".dat";
     private static final String TEMP = ".tmp";
+    private static final String LOG_SUFFIX = ".log";
     private static final Logger logger = LoggerFactory.getLogger(MyDAO.class);
 
     private final File storage;
-    private final long flushThreshold;
+    private final FlushController flushController;
+    private final Config config;
+    private final Manifest manifest;
+    @Nullable
+    private final BlockCache blockCache;
 
     //Data
-    private MemTable memTable;
-    private NavigableMap<Integer, Table> ssTables;
+    private volatile TableSet tables;
+    // Log of the current MemTable, replaced with it
+    private volatile WriteAheadLog log;
+    private int logSequence;
+    // Timestamps of open snapshots with their numbers, guarded by the write lock
+    private final NavigableMap<Long, Integer> snapshots = new TreeMap<>();
 
-    //State
-    private int version;
+    //Sync
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Lock compactionLock = new ReentrantLock();
+    // Orders writes of a key the same way in the log and in the MemTable
+    private final Striped<Lock> keyLocks = Striped.lock(64);
+
+    //Flush
+    private final ExecutorService flusher;
+    private final Semaphore pendingFlushes;
+    private volatile IOException flushError;
+
+    //Compaction
+    private final CompactionStrategy strategy;
+    private final ExecutorService compactor;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    @Nullable
+    private final ScheduledExecutorService syncer;
 
     /**
      * Realization of LSMDAO.
      *
      * @param storage        - SSTable storage directory
-     * @param flushThreshold - max size of MemTable
+     * @param flushThreshold - max size of MemTable, smaller ones are flushed if the heap runs short
      */
     public MyDAO(@NotNull final File storage, final long flushThreshold) throws IOException {
+        this(storage, flushThreshold, Config.DEFAULT);
+    }
+
+    /**
+     * Realization of LSMDAO.
+     *
+     * @param storage        - SSTable storage directory
+     * @param flushThreshold - max size of MemTable, smaller ones are flushed if the heap runs short
+     * @param config         - tuning options
+     */
+    public MyDAO(
+            @NotNull final File storage,
+            final long flushThreshold,
+            @NotNull final Config config) throws IOException {
         assert flushThreshold > 0L;
-        this.flushThreshold = flushThreshold;
+        this.flushController = new FlushController(flushThreshold, config.getMaxPendingFlushes());
         this.storage = storage;
-        this.ssTables = new TreeMap<>();
-        this.memTable = new MemTable();
-        version = -1;
-        final File[] list = storage.listFiles((dir1, name) -> name.endsWith(SUFFIX));
-        assert list != null;
-        Arrays.stream(list)
-                .filter(currentFile -> !currentFile.isDirectory())
-                .forEach(f -> {
-                            final String name = f.getName();
-                            final String sub = name.substring(0, name.indexOf(SUFFIX));
-                            if (sub.matches("[0-9]+")) {
-                                final int gen =
-                                        Integer.parseInt(sub);
-                                try {
-                                    ssTables.put(gen, new SSTable(f));
-                                } catch (IOException e) {
-                                    logger.error("Create SStable error", e);
-                                }
-                                if (gen > version) {
-                                    version = gen;
+        this.config = config;
+        this.blockCache = config.getBlockCacheSize() == 0L ? null : new BlockCache(config.getBlockCacheSize());
+        final NavigableMap<Integer, SSTable> ssTables;
+        final NavigableMap<Integer, File> logs;
+        if (Manifest.exists(storage)) {
+            this.manifest = Manifest.open(storage, config.getKeyOrder());
+            final Map<Integer, File> files = new TreeMap<>();
+            for (final Map.Entry<Integer, Manifest.Entry> entry : manifest.live().entrySet()) {
+                files.put(entry.getKey(), new File(storage, entry.getValue().name));
+            }
+            ssTables = open(files, false);
+            logs = logsFrom(manifest.logSequence());
+        } else {
+            // Storage written before the manifest
+            final File[] list = storage.listFiles((dir1, name) -> name.endsWith(SUFFIX));
+            assert list != null;
+            final Map<Integer, File> files = new TreeMap<>();
+            Arrays.stream(list)
+                    .filter(currentFile -> !currentFile.isDirectory())
+                    .forEach(f -> {
+                                final String name = f.getName();
+                                final String sub = name.substring(0, name.indexOf(SUFFIX));
+                                if (sub.matches("[0-9]+")) {
+                                    files.put(Integer.parseInt(sub), f);
                                 }
                             }
-                        }
-                );
-        version++;
+                    );
+            ssTables = open(files, true);
+            logs = listLogs();
+            final int logSequence = logs.isEmpty() ? 0 : logs.firstKey();
+            this.manifest = Manifest.create(storage, ssTables, config.getKeyOrder(), 0, logSequence);
+        }
+        recover(ssTables, logs);
+        this.tables = TableSet.of(ssTables, manifest.generation(), newMemTable(), manifest.rangeTombstones());
+        this.log = newLog();
+        if (config.getSyncPolicy() == SyncPolicy.PERIODIC) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("syncer-" + storage.getName())
+                    .setDaemon(true)
+                    .build());
+            final long period = config.getSyncPeriod();
+            // Errors are logged by the task itself
+            final Future<?> unused =
+                    syncer.scheduleWithFixedDelay(this::syncLog, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+        this.pendingFlushes = new Semaphore(config.getMaxPendingFlushes());
+        this.flusher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("flusher-" + storage.getName())
+                .setDaemon(true)
+                .build());
+        this.strategy = CompactionStrategy.of(config);
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("compactor-" + storage.getName())
+                .setDaemon(true)
+                .build());
+        scheduleCompaction();
+    }
+
+    /**
+     * Opens SSTables in parallel and preloads them in the background if configured,
+     * tables which fail to open are skipped if allowed.
+     */
+    @NotNull
+    private NavigableMap<Integer, SSTable> open(
+            @NotNull final Map<Integer, File> files,
+            final boolean skipBroken) throws IOException {
+        final ExecutorService opener = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(config.getOpenThreads(), files.size())),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("opener-" + storage.getName() + "-%d")
+                        .setDaemon(true)
+                        .build());
+        final NavigableMap<Integer, SSTable> ssTables = new TreeMap<>();
+        try {
+            final Map<Integer, Future<SSTable>> opened = new TreeMap<>();
+            for (final Map.Entry<Integer, File> entry : files.entrySet()) {
+                opened.put(entry.getKey(), opener.submit(() -> new SSTable(entry.getValue(), config, blockCache)));
+            }
+            for (final Map.Entry<Integer, Future<SSTable>> entry : opened.entrySet()) {
+                try {
+                    ssTables.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    final IOException error = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause()
+                            : new IOException("Can't open SSTable " + files.get(entry.getKey()), e.getCause());
+                    if (!skipBroken) {
+                        throw error;
+                    }
+                    logger.error("Create SStable error", error);
+                }
+            }
+            if (config.isWarmUp()) {
+                for (final SSTable table : ssTables.values()) {
+                    opener.execute(table::load);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted opening SSTables");
+        } finally {
+            opener.shutdown();
+        }
+        return ssTables;
+    }
+
+    /**
+     * Returns logs from given sequence on, they are numbered consecutively.
+     */
+    @NotNull
+    private NavigableMap<Integer, File> logsFrom(final int sequence) {
+        final NavigableMap<Integer, File> logs = new TreeMap<>();
+        for (int seq = sequence; ; seq++) {
+            final File file = new File(storage, seq + LOG_SUFFIX);
+            if (!file.exists()) {
+                return logs;
+            }
+            logs.put(seq, file);
+        }
+    }
+
+    @NotNull
+    private NavigableMap<Integer, File> listLogs() {
+        final File[] list = storage.listFiles((dir, name) -> name.endsWith(LOG_SUFFIX));
+        assert list != null;
+        final NavigableMap<Integer, File> logs = new TreeMap<>();
+        for (final File file : list) {
+            final String sub = file.getName().substring(0, file.getName().indexOf(LOG_SUFFIX));
+            if (sub.matches("[0-9]+")) {
+                logs.put(Integer.parseInt(sub), file);
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * Replays logs left by MemTables which were not flushed into a new SSTable and deletes them.
+     */
+    private void recover(
+            @NotNull final NavigableMap<Integer, SSTable> ssTables,
+            @NotNull final NavigableMap<Integer, File> logs) throws IOException {
+        if (logs.isEmpty()) {
+            logSequence = manifest.logSequence();
+            return;
+        }
+        final MemTable memTable = new MemTable(config.getKeyOrder());
+        for (final File file : logs.values()) {
+            WriteAheadLog.replay(file, memTable);
+        }
+        logSequence = logs.lastKey() + 1;
+        final int gen = Math.max(manifest.generation(), ssTables.isEmpty() ? 0 : ssTables.lastKey() + 1);
+        final Map<Integer, SSTable> recovered = new TreeMap<>();
+        if (memTable.size() > 0) {
+            final Iterator<Cell> cells = memTable.iterator(ByteBuffer.allocate(0));
+            recovered.put(gen, write(gen, cells, memTable.size(), 0, Long.MAX_VALUE));
+            logger.info("Recovered {} cells of {}", memTable.size(), storage);
+        }
+        manifest.commit(Collections.emptyList(), recovered, gen + 1, logSequence);
+        ssTables.putAll(recovered);
+        for (final File file : logs.values()) {
+            Files.delete(file.toPath());
+        }
+    }
+
+    @NotNull
+    private MemTable newMemTable() {
+        return new MemTable(config.isOffHeapMemTable() ? new Arena() : null, config.getKeyOrder());
+    }
+
+    @NotNull
+    private WriteAheadLog newLog() throws IOException {
+        return new WriteAheadLog(new File(storage, logSequence++ + LOG_SUFFIX), config.getSyncPolicy());
+    }
+
+    private void syncLog() {
+        try {
+            log.sync();
+        } catch (IOException e) {
+            logger.error("Log sync error", e);
+        }
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        final Iterator<Cell> alive = Iterators.filter(cellIterator(from),
-                cell -> !requireNonNull(cell).getValue().isTombstone());
+        return range(tables, Long.MAX_VALUE, from, null);
+    }
+
+    /**
+     * Skips SSTables which have no keys in the range.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        return range(tables, Long.MAX_VALUE, from, to);
+    }
+
+    /**
+     * Merges cells of the snapshot with keys in [from, to) written at or before given timestamp.
+     */
+    @NotNull
+    private static Iterator<Record> range(
+            @NotNull final TableSet snapshot,
+            final long at,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && snapshot.order().compare(from, to) > 0) {
+            return Iters.empty();
+        }
+        return records(snapshot, cellIterator(snapshot, at, from, to));
+    }
+
+    /**
+     * Merges cells of all tables from "to" key exclusive down to "from" key.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> descendingRange(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        return descendingRange(tables, Long.MAX_VALUE, from, to);
+    }
+
+    @NotNull
+    private static Iterator<Record> descendingRange(
+            @NotNull final TableSet snapshot,
+            final long at,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && snapshot.order().compare(from, to) > 0) {
+            return Iters.empty();
+        }
+        final List<Iterator<Cell>> iters = new ArrayList<>(snapshot.ssTables.size() + snapshot.flushing.size() + 2);
+        if (snapshot.batch != null) {
+            iters.add(snapshot.batch.descendingIterator(to, at));
+        }
+        iters.add(snapshot.memTable.descendingIterator(to, at));
+        for (final MemTable table : snapshot.flushing.descendingMap().values()) {
+            iters.add(table.descendingIterator(to, at));
+        }
+        for (final Level level : snapshot.levels) {
+            level.addDescendingIterators(iters, from, to);
+        }
+        return records(snapshot, MergeIterator.descending(iters, snapshot.order(), from));
+    }
+
+    /**
+     * Turns cells into records skipping tombstones and cells deleted by range tombstones of the snapshot.
+     */
+    @NotNull
+    private static Iterator<Record> records(
+            @NotNull final TableSet snapshot,
+            @NotNull final Iterator<Cell> cells) {
+        final Iterator<Cell> alive = Iterators.filter(cells,
+                cell -> !requireNonNull(cell).getValue().isTombstone() && !snapshot.deleted(cell));
         return Iterators.transform(alive, cell -> Record.of(requireNonNull(cell).getKey(), cell.getValue().getData()));
     }
 
+    /**
+     * Looks the key up in a batch being applied, the MemTable, then in MemTables being flushed
+     * and then in SSTable levels stopping at the first table which has a cell for the key.
+     */
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        return get(tables, Long.MAX_VALUE, key);
+    }
+
     @NotNull
-    private Iterator<Cell> cellIterator(@NotNull final ByteBuffer from) throws IOException {
-        final List<Iterator<Cell>> iters = new ArrayList<>(ssTables.size() + 1);
-        iters.add(memTable.iterator(from));
-        ssTables.descendingMap().values().forEach(table -> {
+    private static ByteBuffer get(
+            @NotNull final TableSet snapshot,
+            final long at,
+            @NotNull final ByteBuffer key) throws IOException {
+        Cell cell = snapshot.batch == null ? null : snapshot.batch.get(key, at);
+        if (cell == null) {
+            cell = snapshot.memTable.get(key, at);
+        }
+        if (cell == null) {
+            for (final MemTable table : snapshot.flushing.descendingMap().values()) {
+                cell = table.get(key, at);
+                if (cell != null) {
+                    break;
+                }
+            }
+        }
+        if (cell == null) {
+            for (final Level level : snapshot.levels) {
+                cell = level.get(key);
+                if (cell != null) {
+                    break;
+                }
+            }
+        }
+        if (cell == null || cell.getValue().isTombstone() || snapshot.deleted(cell)) {
+            throw new NoSuchElementException("Not found");
+        }
+        return cell.getValue().getData();
+    }
+
+    /**
+     * Merges cells of all tables of the snapshot with keys in [from, to),
+     * SSTables with no keys in the range are skipped, null "to" stands for no upper bound.
+     * MemTables give the versions written at or before given timestamp, SSTables of the snapshot
+     * have only such cells.
+     */
+    @NotNull
+    private static Iterator<Cell> cellIterator(
+            @NotNull final TableSet snapshot,
+            final long at,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        final List<Iterator<Cell>> iters = new ArrayList<>(snapshot.ssTables.size() + snapshot.flushing.size() + 2);
+        if (snapshot.batch != null) {
+            iters.add(snapshot.batch.iterator(from, at));
+        }
+        iters.add(snapshot.memTable.iterator(from, at));
+        for (final MemTable table : snapshot.flushing.descendingMap().values()) {
+            iters.add(table.iterator(from, at));
+        }
+        for (final Level level : snapshot.levels) {
+            level.addIterators(iters, from, to);
+        }
+        return MergeIterator.ascending(iters, snapshot.order(), to);
+    }
+
+    /**
+     * Returns SSTables currently read by generation.
+     */
+    @NotNull
+    NavigableMap<Integer, SSTable> ssTables() {
+        return tables.ssTables;
+    }
+
+    /**
+     * Merges all SSTables which may be compacted as the strategy sees fit.
+     */
+    @Override
+    public void compact() throws IOException {
+        compactionLock.lock();
+        try {
+            scheduleFlush(tables.memTable);
+            awaitFlushes();
+            final NavigableMap<Integer, SSTable> inputs = tables.compactable();
+            if (!inputs.isEmpty()) {
+                compact(strategy.major(inputs));
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Queues background compaction unless it is disabled or already queued.
+     */
+    private void scheduleCompaction() {
+        if (!config.isAutoCompaction() || closed || !compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        compactor.execute(() -> {
+            compactionScheduled.set(false);
             try {
-                iters.add(table.iterator(from));
+                while (!closed && compactOnce()) {
+                    logger.debug("Compacted {}", storage);
+                }
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                logger.error("Compaction error", e);
             }
         });
-        final Iterator<Cell> merged = Iterators.mergeSorted(iters, Comparator.naturalOrder());
-        return Iters.collapseEquals(merged, Cell::getKey);
     }
 
-    @Override
-    public void compact() throws IOException {
-        final Iterator<Cell> iterator = cellIterator(ByteBuffer.allocate(0));
-        final File tmp = new File(storage, version + TEMP);
-        SSTable.serialize(tmp, iterator);
-        for (int i = 0; i < version; i++) {
-            Files.delete(new File(storage, i + SUFFIX).toPath());
-        }
-        version = 0;
-        final File file = new File(storage, version + SUFFIX);
+    /**
+     * Merges tables chosen by the strategy, returns false if there are none.
+     */
+    private boolean compactOnce() throws IOException {
+        compactionLock.lock();
+        try {
+            final Compaction compaction = strategy.pick(tables.compactable());
+            if (compaction == null) {
+                return false;
+            }
+            compact(compaction);
+            return true;
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Merges SSTables of the compaction into new ones, commits them to the manifest,
+     * swaps them in and deletes the inputs once they are no longer read.
+     * Tombstones older than the grace period are dropped unless older tables might have the key,
+     * cells deleted by range tombstones are dropped too and so are range tombstones no table needs any more.
+     */
+    private void compact(@NotNull final Compaction compaction) throws IOException {
+        final NavigableMap<Integer, SSTable> inputs = compaction.inputs;
+        final TableSet current = tables;
+        final List<SSTable> older = olderTables(current.ssTables, compaction);
+        final long purgeBefore = System.currentTimeMillis() - config.getTombstoneGracePeriod();
+        final Iterator<Cell> iterator = Iterators.filter(
+                cellIterator(TableSet.of(inputs, config.getKeyOrder()), Long.MAX_VALUE, ByteBuffer.allocate(0), null),
+                cell -> !current.deleted(requireNonNull(cell)) && !purgeable(cell, purgeBefore, older));
+        int expectedRows = 0;
+        long inputSize = 0L;
+        for (final SSTable table : inputs.values()) {
+            expectedRows += table.rows();
+            inputSize += table.sizeInBytes();
+        }
+        final NavigableMap<Integer, SSTable> outputs = new TreeMap<>();
+        final int tableRows = (int) Math.min(expectedRows,
+                (long) expectedRows * compaction.maxTableSize / Math.max(inputSize, 1L) + 1);
+        if (compaction.level == 0) {
+            // Parts take places of the newest inputs but go to new files, the inputs stay intact until committed.
+            // Parts hold disjoint key ranges, so which of them is newer does not matter
+            final Iterator<Integer> places = inputs.descendingKeySet().iterator();
+            do {
+                final int place = places.next();
+                final SSTable part = places.hasNext()
+                        ? write(reserveGeneration(), iterator, tableRows, 0, compaction.maxTableSize)
+                        : write(reserveGeneration(), iterator, expectedRows, 0, Long.MAX_VALUE);
+                outputs.put(place, part);
+            } while (iterator.hasNext());
+        } else {
+            while (iterator.hasNext()) {
+                final int gen = reserveGeneration();
+                outputs.put(gen, write(gen, iterator, tableRows, compaction.level, compaction.maxTableSize));
+            }
+        }
+        manifest.commit(inputs.keySet(), outputs, tables.generation, 0);
+        lock.writeLock().lock();
+        try {
+            tables = tables.compacted(inputs.keySet(), outputs);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (final SSTable replaced : inputs.values()) {
+            replaced.deleteWhenUnused();
+        }
+        final List<RangeTombstone> purged =
+                tables.purgeableRangeTombstones(purgeBefore, current.rangeTombstones, outputs.keySet());
+        if (!purged.isEmpty()) {
+            manifest.commitRangeTombstones(Collections.emptyList(), purged);
+            lock.writeLock().lock();
+            try {
+                tables = tables.withRangeTombstones(Collections.emptyList(), purged);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns SSTables other than inputs which may hold older cells than the compaction result.
+     */
+    @NotNull
+    private static List<SSTable> olderTables(
+            @NotNull final NavigableMap<Integer, SSTable> ssTables,
+            @NotNull final Compaction compaction) {
+        final int newest = compaction.inputs.lastKey();
+        final List<SSTable> result = new ArrayList<>();
+        for (final Map.Entry<Integer, SSTable> entry : ssTables.entrySet()) {
+            final SSTable table = entry.getValue();
+            if (compaction.inputs.containsKey(entry.getKey()) || table.level() < compaction.level) {
+                continue;
+            }
+            if (table.level() > compaction.level || compaction.level > 0 || entry.getKey() < newest) {
+                result.add(table);
+            }
+        }
+        return result;
+    }
+
+    private static boolean purgeable(
+            @NotNull final Cell cell,
+            final long purgeBefore,
+            @NotNull final List<SSTable> older) {
+        final Value value = cell.getValue();
+        if (!value.isTombstone() || value.getTimestamp() >= purgeBefore) {
+            return false;
+        }
+        final ByteBuffer key = cell.getKey();
+        for (final SSTable table : older) {
+            if (table.mightContain(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int reserveGeneration() {
+        lock.writeLock().lock();
+        try {
+            final TableSet snapshot = tables;
+            tables = snapshot.reserve();
+            return snapshot.generation;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes cells to a temporary file which is then atomically renamed to the SSTable file of given number.
+     */
+    @NotNull
+    private SSTable write(
+            final int number,
+            @NotNull final Iterator<Cell> cells,
+            final int expectedRows,
+            final int level,
+            final long maxSize) throws IOException {
+        final File tmp = new File(storage, number + TEMP);
+        SSTable.serialize(tmp, cells, expectedRows, config, level, maxSize);
+        final File file = new File(storage, number + SUFFIX);
         Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        ssTables = new TreeMap<>();
-        ssTables.put(version, new SSTable(file));
-        memTable = new MemTable();
-        version++;
+        return new SSTable(file, config, blockCache);
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key, value);
-        if (memTable.sizeInBytes() > flushThreshold) {
-            flush();
-        }
+        apply(key, value.duplicate());
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key);
-        if (memTable.sizeInBytes() > flushThreshold) {
-            flush();
+        apply(key, null);
+    }
+
+    /**
+     * Returns the timestamp of a write, later than range tombstones and snapshots
+     * so that they neither delete nor see it.
+     */
+    private static long timestamp(@NotNull final TableSet snapshot) {
+        return Math.max(System.currentTimeMillis(), snapshot.fence + 1);
+    }
+
+    /**
+     * Logs the value or a tombstone if it is null and puts it into the MemTable.
+     * Concurrent writes of the key are logged and put in the same order, so replay restores
+     * the value the MemTable ended up with even if they got the same timestamp.
+     */
+    private void apply(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer data) throws IOException {
+        final Value value;
+        final MemTable memTable;
+        final WriteAheadLog currentLog;
+        final long position;
+        final Lock keyLock = keyLocks.get(key);
+        lock.readLock().lock();
+        keyLock.lock();
+        try {
+            final TableSet snapshot = tables;
+            value = data == null ? new Value(timestamp(snapshot)) : new Value(timestamp(snapshot), data);
+            currentLog = log;
+            position = currentLog.append(key, value);
+            memTable = snapshot.memTable;
+            memTable.put(key, value, snapshot.snapshotsUntil);
+        } finally {
+            keyLock.unlock();
+            lock.readLock().unlock();
         }
+        written(memTable, currentLog, position, key.remaining() + sizeOf(value));
     }
-    
-    private void flush() throws IOException {
-        final File file = new File(storage, version + TEMP);
-        SSTable.serialize(file, memTable.iterator(ByteBuffer.allocate(0)));
-        final File dst = new File(storage, version + SUFFIX);
-        Files.move(file.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        memTable = new MemTable();
-        ssTables.put(version, new SSTable(dst));
-        version++;
+
+    /**
+     * Applies all writes of the batch with one timestamp at once: lookups, iterators and snapshots
+     * which take the tables after that see all of them and earlier ones see none, though an iterator
+     * obtained earlier may see a part of them as it sees concurrent upserts (see {@link DAO#write}).
+     * The batch is logged as one record, so it is recovered whole or not at all.
+     */
+    @Override
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long timestamp = timestamp(tables);
+        MemTable cells = cells(batch, timestamp);
+        final MemTable memTable;
+        final WriteAheadLog currentLog;
+        final long position;
+        lock.writeLock().lock();
+        try {
+            final TableSet snapshot = tables;
+            if (timestamp <= snapshot.fence) {
+                // A range tombstone or a snapshot came in between
+                timestamp = timestamp(snapshot);
+                cells = cells(batch, timestamp);
+            }
+            final List<Cell> sorted = new ArrayList<>(cells.size());
+            cells.iterator(ByteBuffer.allocate(0)).forEachRemaining(sorted::add);
+            currentLog = log;
+            position = currentLog.append(sorted);
+            memTable = snapshot.memTable;
+            // Readers see the batch over the MemTable until it is copied
+            tables = snapshot.applying(cells);
+            memTable.putAll(sorted.iterator(), snapshot.snapshotsUntil);
+            tables = snapshot;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        long bytes = 0L;
+        for (int i = 0; i < batch.size(); i++) {
+            final ByteBuffer data = batch.value(i);
+            bytes += batch.key(i).remaining() + (data == null ? Long.BYTES : data.remaining());
+        }
+        written(memTable, currentLog, position, bytes);
+    }
+
+    /**
+     * Sorts writes of the batch given the timestamp, later ones replacing earlier ones.
+     */
+    @NotNull
+    private MemTable cells(
+            @NotNull final WriteBatch batch,
+            final long timestamp) {
+        final MemTable cells = new MemTable(config.getKeyOrder());
+        for (int i = 0; i < batch.size(); i++) {
+            final ByteBuffer data = batch.value(i);
+            cells.put(batch.key(i), data == null ? new Value(timestamp) : new Value(timestamp, data));
+        }
+        return cells;
+    }
+
+    /**
+     * Records a single range tombstone deleting all cells in [from, to) written so far,
+     * it is committed to the manifest and then hides the cells from readers.
+     * Compaction drops the cells and then the range tombstone once it is past the grace period.
+     */
+    @Override
+    public void removeRange(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && config.getKeyOrder().compare(from, to) >= 0) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            final TableSet snapshot = tables;
+            final RangeTombstone tombstone = new RangeTombstone(from, to, timestamp(snapshot));
+            final List<RangeTombstone> added = Collections.singletonList(tombstone);
+            manifest.commitRangeTombstones(added, Collections.emptyList());
+            tables = snapshot.withRangeTombstones(added, Collections.emptyList());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Takes the current tables with a timestamp no earlier write has a later one than
+     * while later writes get later ones, so reads from the snapshot skip the versions
+     * they put into its MemTables and never look at tables which come after.
+     * MemTables keep the values replaced while the snapshot is open and
+     * SSTables compacted meanwhile stay mapped until it is unreachable, nothing is copied.
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() {
+        lock.writeLock().lock();
+        try {
+            final long timestamp = timestamp(tables);
+            snapshots.merge(timestamp, 1, Integer::sum);
+            tables = tables.withSnapshots(timestamp, snapshots.lastKey());
+            return new PointInTime(tables, timestamp);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void release(final long timestamp) {
+        lock.writeLock().lock();
+        try {
+            snapshots.computeIfPresent(timestamp, (t, count) -> count == 1 ? null : count - 1);
+            tables = tables.withSnapshots(0L, snapshots.isEmpty() ? 0L : snapshots.lastKey());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads tables of the snapshot as they were at its timestamp.
+     */
+    private final class PointInTime implements Snapshot {
+        private final TableSet snapshot;
+        private final long timestamp;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        PointInTime(
+                @NotNull final TableSet snapshot,
+                final long timestamp) {
+            this.snapshot = snapshot;
+            this.timestamp = timestamp;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+            return MyDAO.range(snapshot, timestamp, from, null);
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> range(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to) throws IOException {
+            return MyDAO.range(snapshot, timestamp, from, to);
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> descendingRange(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to) throws IOException {
+            return MyDAO.descendingRange(snapshot, timestamp, from, to);
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+            return MyDAO.get(snapshot, timestamp, key);
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(timestamp);
+            }
+        }
+    }
+
+    private static long sizeOf(@NotNull final Value value) {
+        return value.isTombstone() ? Long.BYTES : value.getData().remaining();
+    }
+
+    /**
+     * Waits for the log to commit the write as the sync policy requires and queues a flush once either the MemTable
+     * or its log grows too large.
+     */
+    private void written(
+            @NotNull final MemTable memTable,
+            @NotNull final WriteAheadLog currentLog,
+            final long position,
+            final long bytes) throws IOException {
+        flushController.written(bytes);
+        currentLog.commit(position);
+        // Overwrites keep the MemTable small but not the log, which also holds the bytes kept off heap
+        final long threshold = flushController.threshold(memTableHeapBytes());
+        final long offHeapSize = config.getOffHeapMemTableSize();
+        final long logThreshold = config.isOffHeapMemTable() ? threshold + offHeapSize : threshold;
+        if (memTable.heapBytes() > threshold || memTable.offHeapBytes() > offHeapSize || position > logThreshold) {
+            scheduleFlush(memTable);
+        }
+    }
+
+    /**
+     * Returns the heap taken by the current MemTable and MemTables being flushed.
+     */
+    private long memTableHeapBytes() {
+        final TableSet snapshot = tables;
+        long bytes = snapshot.memTable.heapBytes();
+        for (final MemTable table : snapshot.flushing.values()) {
+            bytes += table.heapBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Freezes given MemTable and queues it for the background flush unless it is empty
+     * or has already been frozen by another thread, waits while the queue is full.
+     */
+    private void scheduleFlush(@NotNull final MemTable memTable) throws IOException {
+        checkFlushError();
+        if (tables.memTable != memTable) {
+            return;
+        }
+        try {
+            pendingFlushes.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for flush");
+        }
+        final int gen;
+        final WriteAheadLog frozenLog;
+        final int nextLog;
+        lock.writeLock().lock();
+        try {
+            final TableSet snapshot = tables;
+            if (snapshot.memTable != memTable || memTable.size() == 0) {
+                pendingFlushes.release();
+                return;
+            }
+            frozenLog = log;
+            nextLog = logSequence;
+            log = newLog();
+            gen = snapshot.generation;
+            tables = snapshot.freeze(newMemTable());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flusher.execute(() -> {
+            try {
+                frozenLog.close();
+                if (flushError != null) {
+                    // Keep the log, the manifest must not skip the one which failed
+                    return;
+                }
+                flush(gen, memTable, nextLog);
+                Files.delete(frozenLog.file().toPath());
+            } catch (IOException e) {
+                logger.error("Flush error", e);
+                flushError = e;
+            } finally {
+                pendingFlushes.release();
+            }
+        });
+    }
+
+    /**
+     * Waits for the MemTables queued so far to be written.
+     */
+    private void awaitFlushes() throws IOException {
+        try {
+            flusher.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for flush");
+        } catch (ExecutionException e) {
+            throw new IOException("Flush error", e.getCause());
+        }
+        checkFlushError();
+    }
+
+    private void checkFlushError() throws IOException {
+        final IOException error = flushError;
+        if (error != null) {
+            throw new IOException("Background flush failed", error);
+        }
+    }
+
+    /**
+     * Writes frozen MemTable of given generation to disk, commits the SSTable along with
+     * the sequence of the first log still needed and replaces the MemTable with it.
+     */
+    private void flush(
+            final int gen,
+            @NotNull final MemTable memTable,
+            final int nextLog) throws IOException {
+        final SSTable table = write(gen, memTable.iterator(ByteBuffer.allocate(0)), memTable.size(), 0, Long.MAX_VALUE);
+        manifest.commit(Collections.emptyList(), Map.of(gen, table), tables.generation, nextLog);
+        lock.writeLock().lock();
+        try {
+            tables = tables.flushed(gen, table);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleCompaction();
     }
 
     @Override
     public void close() throws IOException {
-        if (memTable.size() > 0) {
-            flush();
+        scheduleFlush(tables.memTable);
+        closed = true;
+        awaitTermination(flusher);
+        awaitTermination(compactor);
+        if (syncer != null) {
+            awaitTermination(syncer);
+        }
+        checkFlushError();
+        log.close();
+        if (tables.memTable.size() == 0) {
+            Files.delete(log.file().toPath());
         }
-        for (int i = 0; i < ssTables.size(); i++) {
-            ssTables.get(i).close();
+        for (final SSTable table : tables.ssTables.values()) {
+            table.close();
+        }
+        manifest.close();
+    }
+
+    private static void awaitTermination(@NotNull final ExecutorService executor) throws IOException {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("Waiting for background task to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for background task");
         }
     }
 }
@@ -0,0 +1,26 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+final class NoCompression implements Compression {
+    static final int ID = 0;
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer raw) {
+        return raw;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(@NotNull final ByteBuffer compressed) {
+        return compressed;
+    }
+}
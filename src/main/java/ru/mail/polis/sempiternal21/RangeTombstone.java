@@ -0,0 +1,87 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Removal of keys in [from, to) written at or before the timestamp, null "to" stands for no upper bound.
+ *
+ * <p>Writes made after a range tombstone get later timestamps, so a cell is deleted by it
+ * whatever table the cell is in.
+ */
+final class RangeTombstone {
+
+    @NotNull
+    private final ByteBuffer from;
+    @Nullable
+    private final ByteBuffer to;
+    private final long timestamp;
+
+    RangeTombstone(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long timestamp) {
+        this.from = copy(from);
+        this.to = to == null ? null : copy(to);
+        this.timestamp = timestamp;
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        return ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip();
+    }
+
+    @NotNull
+    ByteBuffer from() {
+        return from.asReadOnlyBuffer();
+    }
+
+    @Nullable
+    ByteBuffer to() {
+        return to == null ? null : to.asReadOnlyBuffer();
+    }
+
+    long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns true if the cell is deleted by this range tombstone.
+     */
+    boolean covers(
+            @NotNull final Cell cell,
+            @NotNull final KeyOrder order) {
+        return cell.getValue().getTimestamp() <= timestamp
+                && cell.compareKeyTo(from, order) >= 0
+                && (to == null || cell.compareKeyTo(to, order) < 0);
+    }
+
+    /**
+     * Returns true if the table may hold cells deleted by this range tombstone.
+     */
+    boolean covers(@NotNull final SSTable table) {
+        return table.minTimestamp() <= timestamp && table.overlaps(from, to);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RangeTombstone)) {
+            return false;
+        }
+        final RangeTombstone other = (RangeTombstone) o;
+        return timestamp == other.timestamp
+                && from.equals(other.from)
+                && Objects.equals(to, other.to);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(from, to, timestamp);
+    }
+}
@@ -1,108 +1,506 @@
 package ru.mail.polis.sempiternal21;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.Iters;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
 
+/**
+ * Immutable sorted table on disk.
+ *
+ * <p>Files of the current format consist of data blocks of about {@link #BLOCK_SIZE} bytes
+ * with prefix compressed keys restarting every {@link #RESTART_INTERVAL} records (see {@link Block}),
+ * each one encoded by a {@link Compression} and followed by a byte of its id,
+ * the sparse index of block first keys, the {@link BloomFilter} of all keys,
+ * the metadata (live and tombstone counts, timestamp range, min and max keys, level,
+ * timestamp of the oldest tombstone)
+ * and the fixed footer: index offset, block count, row count, filter offset, metadata offset,
+ * format version and {@link #MAGIC}.
+ * The index is loaded on first access or by {@link #load()}, only the footer, the filter and the metadata
+ * are read on open, so a seek is a search over first keys plus one block.
+ * Compressed blocks are decompressed once while they stay in the {@link BlockCache}.
+ * Files of version 7 have no timestamp of the oldest tombstone, so the oldest cell stands for it,
+ * files of version 6 also have no level and belong to level 0,
+ * files of version 5 also have no metadata, so it is collected by a scan on open,
+ * files of version 4 also have no compression, files of version 3 also have plain blocks,
+ * files of version 2 also have no filter,
+ * legacy files have no footer and are read as a single plain block.
+ *
+ * <p>The file stays mapped until the mapping is garbage collected, there is no public way to unmap it earlier.
+ * Buffers handed out by the table are views of the mapping, so it lives as long as
+ * a {@link TableSet}, a snapshot, an iterator or a caller refers to any of them.
+ * POSIX systems let {@link #deleteWhenUnused()} unlink the file of a table replaced by compaction right away,
+ * its blocks stay readable and the space is freed on unmap. Systems which refuse to delete mapped files, as Windows
+ * does, get the file deleted once the mapping is collected, or when the manifest is opened next time
+ * if the mapping is collected but not yet unmapped by then.
+ */
 final class SSTable implements Table {
 
-    private final FileChannel channel;
-    private final int numRows;
-    private final long sizeData;
+    static final int BLOCK_SIZE = 4 * 1024;
+    static final int RESTART_INTERVAL = 16;
+    static final int VERSION = 8;
+    private static final int LEVEL_VERSION = 7;
+    private static final int METADATA_VERSION = 6;
+    private static final int COMPRESSION_VERSION = 5;
+    private static final int PREFIX_VERSION = 4;
+    private static final int FILTER_VERSION = 3;
+    private static final int BLOCKS_VERSION = 2;
+    private static final int LEGACY_VERSION = 1;
+    static final int MAGIC = 0xB10C_55AB;
+    static final int FOOTER_SIZE = 7 * Integer.BYTES;
+    private static final int FILTER_FOOTER_SIZE = 6 * Integer.BYTES;
+    private static final int BLOCKS_FOOTER_SIZE = 4 * Integer.BYTES;
+    private static final Logger logger = LoggerFactory.getLogger(SSTable.class);
+    private static final Cleaner cleaner = Cleaner.create();
 
-    SSTable(@NotNull final File file) throws IOException {
-        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
-        final long sizeFile = channel.size();
-        numRows = getInt(channel, sizeFile - Integer.BYTES);
-        sizeData = sizeFile - (numRows + 1) * Integer.BYTES;
+    private final File file;
+    private final KeyOrder order;
+    private final Config config;
+    @Nullable
+    private final BlockCache cache;
+    private final int cacheId;
+    private final MappedByteBuffer mapping;
+    private final ByteBuffer mapped;
+    private final Deletion deletion;
+    private final int version;
+    private final boolean prefixed;
+    private final boolean compressed;
+    // Sparse index location
+    private final int indexOffset;
+    private final int blockCount;
+    private volatile Index index;
+    @Nullable
+    private final BloomFilter filter;
+
+    // Metadata
+    @Nullable
+    private final ByteBuffer minKey;
+    @Nullable
+    private final ByteBuffer maxKey;
+    private final long minTimestamp;
+    private final long maxTimestamp;
+    private final int liveRows;
+    private final int tombstoneRows;
+    private final int level;
+    private final long oldestTombstone;
+
+    /**
+     * Opens the table reading blocks with codecs of the config, decompressed ones are kept in the cache if given.
+     */
+    SSTable(
+            @NotNull final File file,
+            @NotNull final Config config,
+            @Nullable final BlockCache cache) throws IOException {
+        this.file = file;
+        this.order = config.getKeyOrder();
+        this.config = config;
+        this.cache = cache;
+        this.cacheId = cache == null ? -1 : cache.newTable();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mapped = mapping.asReadOnlyBuffer();
+        deletion = new Deletion(file);
+        cleaner.register(mapping, deletion);
+        final int sizeFile = mapped.limit();
+        if (sizeFile < 2 * Integer.BYTES || mapped.getInt(sizeFile - Integer.BYTES) != MAGIC) {
+            version = LEGACY_VERSION;
+        } else {
+            version = mapped.getInt(sizeFile - 2 * Integer.BYTES);
+        }
+        final int footer;
+        if (version >= METADATA_VERSION && version <= VERSION) {
+            footer = sizeFile - FOOTER_SIZE;
+        } else if (version >= FILTER_VERSION && version <= COMPRESSION_VERSION) {
+            footer = sizeFile - FILTER_FOOTER_SIZE;
+        } else if (version == BLOCKS_VERSION) {
+            footer = sizeFile - BLOCKS_FOOTER_SIZE;
+        } else if (version == LEGACY_VERSION) {
+            footer = sizeFile;
+        } else {
+            throw new IOException("Unsupported SSTable version " + version + " in " + file);
+        }
+        prefixed = version >= PREFIX_VERSION;
+        compressed = version >= COMPRESSION_VERSION;
+
+        if (version == LEGACY_VERSION) {
+            indexOffset = -1;
+            blockCount = 1;
+        } else {
+            indexOffset = mapped.getInt(footer);
+            blockCount = mapped.getInt(footer + Integer.BYTES);
+        }
+
+        if (version >= FILTER_VERSION) {
+            final int filterOffset = mapped.getInt(footer + 3 * Integer.BYTES);
+            final int filterEnd = version >= METADATA_VERSION ? mapped.getInt(footer + 4 * Integer.BYTES) : footer;
+            filter = BloomFilter.read(slice(filterOffset, filterEnd - filterOffset));
+        } else {
+            filter = null;
+        }
+
+        if (version >= METADATA_VERSION) {
+            final ByteBuffer meta = mapped.duplicate().position(mapped.getInt(footer + 4 * Integer.BYTES));
+            liveRows = meta.getInt();
+            tombstoneRows = meta.getInt();
+            minTimestamp = meta.getLong();
+            maxTimestamp = meta.getLong();
+            final int minKeySize = meta.getInt();
+            final ByteBuffer first = slice(meta.position(), minKeySize);
+            meta.position(meta.position() + minKeySize);
+            final int maxKeySize = meta.getInt();
+            final ByteBuffer last = slice(meta.position(), maxKeySize);
+            meta.position(meta.position() + maxKeySize);
+            level = version >= LEVEL_VERSION ? meta.getInt() : 0;
+            if (version >= VERSION) {
+                oldestTombstone = meta.getLong();
+            } else {
+                oldestTombstone = tombstoneRows == 0 ? Long.MAX_VALUE : minTimestamp;
+            }
+            final boolean empty = liveRows + tombstoneRows == 0;
+            minKey = empty ? null : first;
+            maxKey = empty ? null : last;
+        } else {
+            // Older tables are scanned once, until compaction rewrites them
+            final Stats stats = new Stats();
+            final Iterator<Cell> cells = iterator(ByteBuffer.allocate(0));
+            while (cells.hasNext()) {
+                stats.add(cells.next());
+            }
+            liveRows = stats.liveRows;
+            tombstoneRows = stats.tombstoneRows;
+            minTimestamp = stats.minTimestamp;
+            maxTimestamp = stats.maxTimestamp;
+            minKey = stats.minKey;
+            maxKey = stats.maxKey;
+            level = 0;
+            oldestTombstone = stats.oldestTombstone;
+        }
     }
 
-    public static int getInt(final FileChannel channel, final long offset) throws IOException {
-        final ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES);
-        channel.read(buf, offset);
-        return buf.rewind().getInt();
+    @NotNull
+    private ByteBuffer slice(final int offset, final int length) {
+        return mapped.duplicate()
+                .position(offset)
+                .limit(offset + length)
+                .slice();
     }
 
-    private int getOffset(final int numRow) throws IOException {
-        final ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES);
-        channel.read(buf, sizeData + numRow * Integer.BYTES);
-        return buf.rewind().getInt();
+    /**
+     * Offsets, sizes and first keys of data blocks.
+     */
+    private static final class Index {
+        final int[] blockOffsets;
+        final int[] blockSizes;
+        final ByteBuffer[] firstKeys;
+
+        Index(final int blocks) {
+            this.blockOffsets = new int[blocks];
+            this.blockSizes = new int[blocks];
+            this.firstKeys = new ByteBuffer[blocks];
+        }
     }
 
     @NotNull
-    private ByteBuffer key(final int row) throws IOException {
-        final int offset = getOffset(row);
-        final ByteBuffer key = ByteBuffer.allocate(getInt(channel, offset));
-        channel.read(key, offset + Integer.BYTES);
-        return key.rewind();
+    private Index index() {
+        Index result = index;
+        if (result == null) {
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    result = readIndex();
+                    index = result;
+                }
+            }
+        }
+        return result;
     }
 
     @NotNull
-    private Cell cell(final int row) throws IOException {
-        int offset = getOffset(row);
-        final ByteBuffer key = key(row);
-        offset += key.remaining() + Integer.BYTES;
-        final ByteBuffer timestamp = ByteBuffer.allocate(Long.BYTES);
-        channel.read(timestamp, offset);
-        offset += Long.BYTES;
-        final long bufferOffset = timestamp.rewind().getLong();
-        if (bufferOffset < 0) {
-            return new Cell(key, new Value(-bufferOffset));
-        } else {
-            final ByteBuffer value = ByteBuffer.allocate(getInt(channel, offset));
-            offset += Integer.BYTES;
-            channel.read(value, offset);
-            return new Cell(key, new Value(timestamp.rewind().getLong(), value.rewind()));
+    private Index readIndex() {
+        final Index result = new Index(blockCount);
+        if (version == LEGACY_VERSION) {
+            result.blockSizes[0] = mapped.limit();
+            result.firstKeys[0] = ByteBuffer.allocate(0);
+            return result;
+        }
+        int offset = indexOffset;
+        for (int i = 0; i < blockCount; i++) {
+            result.blockOffsets[i] = mapped.getInt(offset);
+            result.blockSizes[i] = mapped.getInt(offset + Integer.BYTES);
+            final int keySize = mapped.getInt(offset + 2 * Integer.BYTES);
+            offset += 3 * Integer.BYTES;
+            result.firstKeys[i] = slice(offset, keySize);
+            offset += keySize;
+        }
+        return result;
+    }
+
+    /**
+     * Reads the index and touches every page of the file, so that first reads do not stall.
+     */
+    void load() {
+        index();
+        mapping.load();
+    }
+
+    boolean indexLoaded() {
+        return index != null;
+    }
+
+    @NotNull
+    private Block block(
+            @NotNull final Index index,
+            final int i) throws IOException {
+        if (!compressed) {
+            return new Block(slice(index.blockOffsets[i], index.blockSizes[i]), prefixed, order);
         }
+        final int size = index.blockSizes[i] - 1;
+        final Compression compression = config.codec(Byte.toUnsignedInt(mapped.get(index.blockOffsets[i] + size)));
+        if (cache == null || compression == Compression.NONE) {
+            return new Block(compression.decompress(slice(index.blockOffsets[i], size)), prefixed, order);
+        }
+        final Block cached = cache.get(cacheId, i);
+        if (cached != null) {
+            return cached;
+        }
+        final ByteBuffer data = compression.decompress(slice(index.blockOffsets[i], size));
+        final Block block = new Block(data, prefixed, order);
+        cache.put(cacheId, i, block, data.capacity());
+        return block;
     }
 
-    private int binarySearch(@NotNull final ByteBuffer from) throws IOException {
+    /**
+     * Returns the last block which may contain given key.
+     */
+    private int blockFor(
+            @NotNull final Index index,
+            @NotNull final ByteBuffer key) {
         int l = 0;
-        int r = numRows - 1;
+        int r = index.firstKeys.length - 1;
         while (l <= r) {
             final int med = (l + r) / 2;
-            final int cmp = key(med).compareTo(from);
-            if (cmp < 0) {
+            if (order.compare(index.firstKeys[med], key) <= 0) {
                 l = med + 1;
-            } else if (cmp > 0) {
+            } else {
                 r = med - 1;
+            }
+        }
+        return Math.max(r, 0);
+    }
+
+    /**
+     * Returns the last block with first key less than given one or -1 if there is none.
+     */
+    private int lastBlockBefore(
+            @NotNull final Index index,
+            @NotNull final ByteBuffer to) {
+        int l = 0;
+        int r = index.firstKeys.length - 1;
+        while (l <= r) {
+            final int med = (l + r) / 2;
+            if (order.compare(index.firstKeys[med], to) < 0) {
+                l = med + 1;
             } else {
-                return med;
+                r = med - 1;
             }
         }
-        return l;
+        return r;
+    }
+
+    int version() {
+        return version;
+    }
+
+    /**
+     * Returns the size of the file.
+     */
+    long sizeInBytes() {
+        return mapped.capacity();
+    }
+
+    int rows() {
+        return liveRows + tombstoneRows;
+    }
+
+    int liveRows() {
+        return liveRows;
+    }
+
+    int tombstoneRows() {
+        return tombstoneRows;
+    }
+
+    long minTimestamp() {
+        return minTimestamp;
+    }
+
+    long maxTimestamp() {
+        return maxTimestamp;
+    }
+
+    @NotNull
+    File file() {
+        return file;
+    }
+
+    /**
+     * Returns the smallest key or null if the table is empty.
+     */
+    @Nullable
+    ByteBuffer minKey() {
+        return minKey;
+    }
+
+    /**
+     * Returns the largest key or null if the table is empty.
+     */
+    @Nullable
+    ByteBuffer maxKey() {
+        return maxKey;
+    }
+
+    /**
+     * Returns the timestamp of the oldest tombstone or {@link Long#MAX_VALUE} if there are none.
+     */
+    long oldestTombstone() {
+        return oldestTombstone;
+    }
+
+    /**
+     * Returns the share of tombstones among cells.
+     */
+    double tombstoneRatio() {
+        return tombstoneRows == 0 ? 0.0 : (double) tombstoneRows / rows();
+    }
+
+    /**
+     * Returns the level of the table in the LSM tree, 0 for flushed ones.
+     */
+    int level() {
+        return level;
+    }
+
+    /**
+     * Returns false if the table definitely has no keys in [from, to), null stands for no upper bound.
+     */
+    boolean overlaps(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        return minKey != null
+                && maxKey != null
+                && order.compare(maxKey, from) >= 0
+                && (to == null || order.compare(minKey, to) < 0);
+    }
+
+    /**
+     * Returns false if the table definitely has no cell with given key.
+     */
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        return minKey != null
+                && maxKey != null
+                && order.compare(minKey, key) <= 0
+                && order.compare(maxKey, key) >= 0
+                && (filter == null || filter.mightContain(key));
     }
 
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+        final Index index = index();
+        if (index.firstKeys.length == 0) {
+            return Iters.empty();
+        }
+        final int first = blockFor(index, from);
         return new Iterator<>() {
-            int pos = binarySearch(from);
+            int current = first;
+            Iterator<Cell> block = block(index, first).iterator(from);
 
             @Override
             public boolean hasNext() {
-                return pos < numRows;
+                while (!block.hasNext()) {
+                    if (current + 1 >= index.blockOffsets.length) {
+                        return false;
+                    }
+                    try {
+                        block = block(index, ++current).iterator();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return true;
             }
 
             @Override
             public Cell next() {
-                try {
-                    return cell(pos++);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                if (!hasNext()) {
+                    throw new NoSuchElementException("End of table");
                 }
+                return block.next();
             }
         };
     }
 
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(@Nullable final ByteBuffer to) throws IOException {
+        final Index index = index();
+        final int last = to == null ? index.firstKeys.length - 1 : lastBlockBefore(index, to);
+        if (last < 0) {
+            return Iters.empty();
+        }
+        return new Iterator<>() {
+            int current = last;
+            Iterator<Cell> block = block(index, last).descendingIterator(to);
+
+            @Override
+            public boolean hasNext() {
+                while (!block.hasNext()) {
+                    if (current == 0) {
+                        return false;
+                    }
+                    try {
+                        block = block(index, --current).descendingIterator(null);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("End of table");
+                }
+                return block.next();
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) throws IOException {
+        if (!mightContain(key)) {
+            return null;
+        }
+        final Index index = index();
+        return block(index, blockFor(index, key)).get(key);
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
         throw new UnsupportedOperationException("Immutable");
@@ -113,54 +511,118 @@ final class SSTable implements Table {
         throw new UnsupportedOperationException("Immutable");
     }
 
+    /**
+     * Drops cached blocks of the table, the mapping is released once nothing refers to it.
+     */
     @Override
-    public void close() throws IOException {
-        channel.close();
-    }
-
-    static void serialize(final File file, @NotNull final Iterator<Cell> iterator) throws IOException {
-        try (FileChannel fileChannel = new FileOutputStream(file).getChannel()) {
-            final List<Integer> offsets = new ArrayList<>();
-            int offset = 0;
-            while (iterator.hasNext()) {
-                offsets.add(offset);
-                final Cell buf = iterator.next();
-                final ByteBuffer key = buf.getKey();
-                final Value value = buf.getValue();
-                final int keySize = key.remaining();
-
-                fileChannel.write(ByteBuffer.allocate(Integer.BYTES)
-                        .putInt(keySize)
-                        .rewind());
-                fileChannel.write(key);
-                if (value.isTombstone()) {
-                    fileChannel.write(ByteBuffer.allocate(Long.BYTES)
-                            .putLong(-value.getTimestamp())
-                            .rewind());
-                } else {
-                    fileChannel.write(ByteBuffer.allocate(Long.BYTES)
-                            .putLong(value.getTimestamp())
-                            .rewind());
-                    final ByteBuffer data = value.getData();
-                    final int valueSize = data.remaining();
-                    offset += Integer.BYTES + valueSize;
-                    fileChannel.write(ByteBuffer.allocate(Integer.BYTES)
-                            .putInt(valueSize)
-                            .rewind());
-                    fileChannel.write(data);
-                }
-                offset += Integer.BYTES + keySize + Long.BYTES;
+    public void close() {
+        if (cache != null) {
+            cache.invalidate(cacheId);
+        }
+    }
+
+    /**
+     * Closes the table and deletes its file, once the mapping is garbage collected if it can't be deleted now.
+     */
+    void deleteWhenUnused() {
+        close();
+        try {
+            Files.delete(file.toPath());
+        } catch (IOException e) {
+            logger.debug("Deletion of mapped SSTable {} is postponed until it is unmapped", file, e);
+            deletion.requested = true;
+        }
+    }
+
+    /**
+     * Deletes the file of a table after its mapping is collected if the table was replaced.
+     * Must not refer to the table or the mapping, otherwise they are never collected.
+     */
+    private static final class Deletion implements Runnable {
+        private final File file;
+        volatile boolean requested;
+
+        Deletion(@NotNull final File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            if (!requested) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                logger.warn("Can't delete replaced SSTable {}, it is left until the storage is opened", file, e);
             }
+        }
+    }
+
+    /**
+     * Writes cells to the file in the current format.
+     *
+     * @param expectedRows - estimated number of cells to size the Bloom filter
+     */
+    static void serialize(
+            final File file,
+            @NotNull final Iterator<Cell> iterator,
+            final int expectedRows,
+            @NotNull final Config config,
+            final int level) throws IOException {
+        serialize(file, iterator, expectedRows, config, level, Long.MAX_VALUE);
+    }
 
-            for (final Integer off : offsets) {
-                fileChannel.write(ByteBuffer.allocate(Integer.BYTES)
-                        .putInt(off)
-                        .rewind());
+    /**
+     * Writes cells to the file in the current format until it grows to given size,
+     * the rest of cells are left in the iterator.
+     *
+     * @param expectedRows - estimated number of cells to size the Bloom filter
+     * @param maxSize      - size of data after which no more cells are written
+     */
+    static void serialize(
+            final File file,
+            @NotNull final Iterator<Cell> iterator,
+            final int expectedRows,
+            @NotNull final Config config,
+            final int level,
+            final long maxSize) throws IOException {
+        try (SSTableWriter writer = new SSTableWriter(file, expectedRows, config, level)) {
+            while (iterator.hasNext() && writer.size() < maxSize) {
+                writer.write(iterator.next());
+            }
+        }
+    }
+
+    /**
+     * Accumulates metadata of cells in ascending order.
+     */
+    static final class Stats {
+        @Nullable
+        ByteBuffer minKey;
+        @Nullable
+        ByteBuffer maxKey;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        long oldestTombstone = Long.MAX_VALUE;
+        int liveRows;
+        int tombstoneRows;
+
+        void add(@NotNull final Cell cell) {
+            final ByteBuffer key = cell.getKey();
+            if (minKey == null) {
+                minKey = key;
+            }
+            maxKey = key;
+            final Value value = cell.getValue();
+            minTimestamp = Math.min(minTimestamp, value.getTimestamp());
+            maxTimestamp = Math.max(maxTimestamp, value.getTimestamp());
+            if (value.isTombstone()) {
+                oldestTombstone = Math.min(oldestTombstone, value.getTimestamp());
+                tombstoneRows++;
+            } else {
+                liveRows++;
             }
-            final int offsetSize = offsets.size();
-            fileChannel.write(ByteBuffer.allocate(Integer.BYTES)
-                    .putInt(offsetSize)
-                    .rewind());
         }
     }
 }
@@ -0,0 +1,264 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streams cells into a file of the current {@link SSTable} format.
+ *
+ * <p>Records are collected into a block buffer which is compressed as a whole once full.
+ * Everything then goes through one reusable buffer which is written out only when full,
+ * so the number of syscalls depends on the table size rather than on the number of cells.
+ */
+final class SSTableWriter implements Closeable {
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final BloomFilter filter;
+    private final Compression compression;
+    private final SSTable.Stats stats = new SSTable.Stats();
+    private final int level;
+    private ByteBuffer block = ByteBuffer.allocate(2 * SSTable.BLOCK_SIZE);
+
+    // Offsets of restart rows in the current block
+    private int[] offsets = new int[64];
+    private int restarts;
+    private int blockRows;
+    private ByteBuffer lastKey;
+
+    // Sparse index
+    private int[] blockOffsets = new int[64];
+    private final List<ByteBuffer> firstKeys = new ArrayList<>();
+    private int blocks;
+
+    private int position;
+
+    /**
+     * Creates the file and prepares to write cells in ascending order.
+     *
+     * @param expectedRows - estimated number of cells to size the Bloom filter
+     * @param level        - level of the table in the LSM tree
+     */
+    SSTableWriter(
+            @NotNull final File file,
+            final int expectedRows,
+            @NotNull final Config config,
+            final int level) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = config.isDirectWriteBuffer()
+                ? ByteBuffer.allocateDirect(config.getWriteBufferSize())
+                : ByteBuffer.allocate(config.getWriteBufferSize());
+        this.filter = BloomFilter.create(expectedRows, config.getBloomFalsePositiveRate());
+        this.compression = config.getCompression();
+        this.level = level;
+    }
+
+    void write(@NotNull final Cell cell) throws IOException {
+        final ByteBuffer key = cell.getKey();
+        final Value value = cell.getValue();
+        if (blockRows == 0) {
+            if (blocks == blockOffsets.length) {
+                blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+            }
+            blockOffsets[blocks++] = position;
+            firstKeys.add(key.duplicate());
+        }
+        final int shared;
+        if (blockRows % SSTable.RESTART_INTERVAL == 0) {
+            if (restarts == offsets.length) {
+                offsets = Arrays.copyOf(offsets, restarts * 2);
+            }
+            offsets[restarts++] = block.position();
+            shared = 0;
+        } else {
+            shared = sharedPrefix(lastKey, key);
+        }
+        blockRows++;
+        filter.add(key);
+        stats.add(cell);
+        lastKey = key.duplicate();
+
+        final int suffix = key.remaining() - shared;
+        final ByteBuffer data = value.isTombstone() ? null : value.getData();
+        ensureBlockCapacity(3 * 5 + suffix + Long.BYTES + (data == null ? 0 : data.remaining()));
+        putVarInt(block, shared);
+        putVarInt(block, suffix);
+        block.put(key.position(key.position() + shared));
+        if (data == null) {
+            block.putLong(-value.getTimestamp());
+        } else {
+            block.putLong(value.getTimestamp());
+            putVarInt(block, data.remaining());
+            block.put(data);
+        }
+
+        if (block.position() >= SSTable.BLOCK_SIZE) {
+            finishBlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    long size() {
+        return (long) position + block.position();
+    }
+
+    private static int sharedPrefix(
+            @NotNull final ByteBuffer left,
+            @NotNull final ByteBuffer right) {
+        final int mismatch = left.mismatch(right);
+        return mismatch < 0 ? left.remaining() : Math.min(mismatch, Math.min(left.remaining(), right.remaining()));
+    }
+
+    private void ensureBlockCapacity(final int size) {
+        if (block.remaining() < size) {
+            final int capacity = Math.max(block.capacity() * 2, block.position() + size);
+            block = ByteBuffer.allocate(capacity).put(block.flip());
+        }
+    }
+
+    private void finishBlock() throws IOException {
+        ensureBlockCapacity((restarts + 1) * Integer.BYTES);
+        for (int i = 0; i < restarts; i++) {
+            block.putInt(offsets[i]);
+        }
+        block.putInt(restarts);
+        put(compression.compress(block.flip()));
+        putByte(compression.id());
+        block.clear();
+        restarts = 0;
+        blockRows = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            if (blockRows > 0) {
+                finishBlock();
+            }
+            final int indexOffset = position;
+            for (int i = 0; i < blocks; i++) {
+                final int end = i + 1 < blocks ? blockOffsets[i + 1] : indexOffset;
+                final ByteBuffer firstKey = firstKeys.get(i);
+                putInt(blockOffsets[i]);
+                putInt(end - blockOffsets[i]);
+                putInt(firstKey.remaining());
+                put(firstKey);
+            }
+            final int filterOffset = position;
+            put(filter.toBuffer());
+            final int metaOffset = position;
+            putInt(stats.liveRows);
+            putInt(stats.tombstoneRows);
+            putLong(stats.minTimestamp);
+            putLong(stats.maxTimestamp);
+            putKey(stats.minKey);
+            putKey(stats.maxKey);
+            putInt(level);
+            putLong(stats.oldestTombstone);
+            putInt(indexOffset);
+            putInt(blocks);
+            putInt(stats.liveRows + stats.tombstoneRows);
+            putInt(filterOffset);
+            putInt(metaOffset);
+            putInt(SSTable.VERSION);
+            putInt(SSTable.MAGIC);
+            flushBuffer();
+            // Logs of the cells are deleted once the table is in place
+            channel.force(false);
+        }
+    }
+
+    private void putInt(final int value) throws IOException {
+        if (buffer.remaining() < Integer.BYTES) {
+            flushBuffer();
+        }
+        buffer.putInt(value);
+        advance(Integer.BYTES);
+    }
+
+    private void putKey(@Nullable final ByteBuffer key) throws IOException {
+        if (key == null) {
+            putInt(0);
+        } else {
+            putInt(key.remaining());
+            put(key.duplicate());
+        }
+    }
+
+    private void putLong(final long value) throws IOException {
+        if (buffer.remaining() < Long.BYTES) {
+            flushBuffer();
+        }
+        buffer.putLong(value);
+        advance(Long.BYTES);
+    }
+
+    private void putByte(final int value) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.put((byte) value);
+        advance(1);
+    }
+
+    private static void putVarInt(
+            @NotNull final ByteBuffer dst,
+            final int value) {
+        int rest = value;
+        while ((rest & ~0x7F) != 0) {
+            dst.put((byte) ((rest & 0x7F) | 0x80));
+            rest >>>= 7;
+        }
+        dst.put((byte) rest);
+    }
+
+    private void put(@NotNull final ByteBuffer src) throws IOException {
+        final int size = src.remaining();
+        if (size > buffer.remaining()) {
+            flushBuffer();
+        }
+        if (size > buffer.remaining()) {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } else {
+            buffer.put(src);
+        }
+        advance(size);
+    }
+
+    /**
+     * Moves the position past bytes just put, failing rather than letting int offsets wrap.
+     */
+    private void advance(final int size) throws IOException {
+        if (size > Integer.MAX_VALUE - position) {
+            throw new IOException("SSTable " + file + " outgrows " + Integer.MAX_VALUE + " bytes");
+        }
+        position += size;
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
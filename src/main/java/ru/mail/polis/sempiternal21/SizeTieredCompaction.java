@@ -0,0 +1,97 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Groups SSTables of consecutive generations into buckets of similar size and merges
+ * a bucket once it collects {@link Config#getCompactionTableCount()} tables.
+ *
+ * <p>A merged bucket makes a table several times larger which lands in a bucket of larger tables,
+ * so a cell is rewritten about once per size tier, logarithmic in the size of the data.
+ * Buckets are runs of consecutive generations, so that the result may take the place of the newest table.
+ * Tables of {@link Config#getMaxTableSize()} are the largest tier and are merged again only by
+ * tombstone or major compactions.
+ *
+ * <p>Only tables of level 0 are ordered by generation, so tables left in deeper levels by
+ * {@link LeveledCompaction} are first merged with all the others into a single table of level 0.
+ */
+final class SizeTieredCompaction implements CompactionStrategy {
+
+    // Tables smaller than that are all similar
+    private static final long SMALL_TABLE = 1024 * 1024;
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+    private static final int MAX_BUCKET = 32;
+
+    private final Config config;
+    private final int minBucket;
+    private final long maxTableSize;
+
+    SizeTieredCompaction(@NotNull final Config config) {
+        this.config = config;
+        this.minBucket = config.getCompactionTableCount();
+        this.maxTableSize = config.getMaxTableSize();
+    }
+
+    /**
+     * Returns all tables if some are not in level 0, the table with most tombstones together
+     * with all older ones, so that they may be dropped, or else the bucket of the smallest tables
+     * among those large enough.
+     */
+    @Nullable
+    @Override
+    public Compaction pick(@NotNull final NavigableMap<Integer, SSTable> tables) {
+        for (final SSTable table : tables.values()) {
+            if (table.level() > 0) {
+                return major(tables);
+            }
+        }
+        final Integer tombstones = Compaction.mostTombstones(tables, config);
+        if (tombstones != null) {
+            return Compaction.inPlace(tables.headMap(tombstones, true), config);
+        }
+        NavigableMap<Integer, SSTable> best = null;
+        long bestSize = Long.MAX_VALUE;
+        NavigableMap<Integer, SSTable> bucket = new TreeMap<>();
+        long bucketSize = 0L;
+        for (final Map.Entry<Integer, SSTable> entry : tables.entrySet()) {
+            final long size = entry.getValue().sizeInBytes();
+            final boolean full = size >= maxTableSize;
+            if (!bucket.isEmpty()
+                    && (full || !(similar(size, bucketSize / bucket.size()) && bucket.size() < MAX_BUCKET))) {
+                if (bucket.size() >= minBucket && bucketSize < bestSize) {
+                    best = bucket;
+                    bestSize = bucketSize;
+                }
+                bucket = new TreeMap<>();
+                bucketSize = 0L;
+            }
+            if (!full) {
+                bucket.put(entry.getKey(), entry.getValue());
+                bucketSize += size;
+            }
+        }
+        if (bucket.size() >= minBucket && bucketSize < bestSize) {
+            best = bucket;
+        }
+        return best == null ? null : Compaction.inPlace(best, config);
+    }
+
+    private static boolean similar(
+            final long size,
+            final long average) {
+        return (size < SMALL_TABLE && average < SMALL_TABLE)
+                || (size >= average * BUCKET_LOW && size <= average * BUCKET_HIGH);
+    }
+
+    @NotNull
+    @Override
+    public Compaction major(@NotNull final NavigableMap<Integer, SSTable> tables) {
+        return Compaction.inPlace(tables, config);
+    }
+}
@@ -0,0 +1,22 @@
+package ru.mail.polis.sempiternal21;
+
+/**
+ * When writes logged by {@link MyDAO} are forced to disk.
+ */
+public enum SyncPolicy {
+    /**
+     * Every write waits until it is on disk, concurrent writes share a sync.
+     */
+    ALWAYS,
+    /**
+     * Writes are collected in memory and forced to disk every {@link Config#getSyncPeriod()} milliseconds,
+     * so a crash loses at most that many last milliseconds of writes.
+     * The collected writes are handed to the OS early once they take 64 KB.
+     */
+    PERIODIC,
+    /**
+     * Every write is handed to the OS but never forced, so it survives a crash of the process only.
+     * Concurrent writes share a write call.
+     */
+    NONE
+}
@@ -1,6 +1,7 @@
 package ru.mail.polis.sempiternal21;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -10,6 +11,18 @@ public interface Table {
     @NotNull
     Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
 
+    /**
+     * Returns cells with keys less than given one in descending order, null stands for no bound.
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(@Nullable ByteBuffer to) throws IOException;
+
+    /**
+     * Returns the cell (possibly a tombstone) stored by given key or null if there is none.
+     */
+    @Nullable
+    Cell get(@NotNull ByteBuffer key) throws IOException;
+
     /**
      * Inserts or updates value by given key.
      */
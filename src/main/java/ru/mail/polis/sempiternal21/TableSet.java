@@ -0,0 +1,287 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Immutable snapshot of the tables of {@link MyDAO}.
+ *
+ * <p>Every change produces a new snapshot, so readers may use one
+ * without locking while writers swap it.
+ *
+ * <p>Cells of a batch being applied are the newest ones, then come cells of the current MemTable,
+ * followed by MemTables being flushed from the newest generation to the oldest and then
+ * by SSTable levels: level 0 from the newest generation to the oldest and deeper levels
+ * one after another. Cells deleted by range tombstones are hidden in all of them.
+ *
+ * <p>Writes get timestamps later than the fence, the latest timestamp handed to a range tombstone
+ * or a point-in-time snapshot, while MemTables keep values replaced since the newest live snapshot.
+ */
+final class TableSet {
+
+    @NotNull
+    final MemTable memTable;
+    // Frozen MemTables being written to disk by generation
+    @NotNull
+    final NavigableMap<Integer, MemTable> flushing;
+    @NotNull
+    final NavigableMap<Integer, SSTable> ssTables;
+    // SSTables by level in the order of precedence
+    @NotNull
+    final List<Level> levels;
+    // Next free generation
+    final int generation;
+    // Batch being copied into the MemTable
+    @Nullable
+    final MemTable batch;
+    @NotNull
+    final List<RangeTombstone> rangeTombstones;
+    // Timestamp of the newest range tombstone
+    final long rangeTombstonesUntil;
+    // Latest timestamp handed to a range tombstone or a snapshot
+    final long fence;
+    // Timestamp of the newest live snapshot, 0 if there are none
+    final long snapshotsUntil;
+
+    private TableSet(
+            @NotNull final MemTable memTable,
+            @NotNull final NavigableMap<Integer, MemTable> flushing,
+            @NotNull final NavigableMap<Integer, SSTable> ssTables,
+            @NotNull final List<Level> levels,
+            final int generation,
+            @Nullable final MemTable batch,
+            @NotNull final List<RangeTombstone> rangeTombstones,
+            final long fence,
+            final long snapshotsUntil) {
+        this.memTable = memTable;
+        this.flushing = Collections.unmodifiableNavigableMap(flushing);
+        this.ssTables = Collections.unmodifiableNavigableMap(ssTables);
+        this.levels = Collections.unmodifiableList(levels);
+        this.generation = generation;
+        this.batch = batch;
+        this.rangeTombstones = Collections.unmodifiableList(rangeTombstones);
+        long until = 0L;
+        for (final RangeTombstone tombstone : rangeTombstones) {
+            until = Math.max(until, tombstone.timestamp());
+        }
+        this.rangeTombstonesUntil = until;
+        this.fence = Math.max(fence, until);
+        this.snapshotsUntil = snapshotsUntil;
+    }
+
+    private TableSet(
+            @NotNull final MemTable memTable,
+            @NotNull final NavigableMap<Integer, MemTable> flushing,
+            @NotNull final NavigableMap<Integer, SSTable> ssTables,
+            final int generation,
+            @NotNull final List<RangeTombstone> rangeTombstones,
+            final long fence,
+            final long snapshotsUntil) {
+        this(memTable, flushing, ssTables, levels(ssTables, memTable.order()), generation, null, rangeTombstones,
+                fence, snapshotsUntil);
+    }
+
+    @NotNull
+    private static List<Level> levels(
+            @NotNull final NavigableMap<Integer, SSTable> ssTables,
+            @NotNull final KeyOrder order) {
+        final List<List<SSTable>> byLevel = new ArrayList<>();
+        for (final SSTable table : ssTables.descendingMap().values()) {
+            while (byLevel.size() <= table.level()) {
+                byLevel.add(new ArrayList<>());
+            }
+            byLevel.get(table.level()).add(table);
+        }
+        final List<Level> levels = new ArrayList<>(byLevel.size());
+        for (final List<SSTable> tables : byLevel) {
+            levels.add(new Level(tables, order));
+        }
+        return levels;
+    }
+
+    /**
+     * Creates a set of given SSTables and an empty MemTable of the next generation.
+     */
+    @NotNull
+    static TableSet of(
+            @NotNull final NavigableMap<Integer, SSTable> ssTables,
+            @NotNull final KeyOrder order) {
+        return of(ssTables, 0, new MemTable(order), Collections.emptyList());
+    }
+
+    /**
+     * Creates a set of given SSTables, the MemTable and range tombstones,
+     * generations below given one are not handed out either.
+     */
+    @NotNull
+    static TableSet of(
+            @NotNull final NavigableMap<Integer, SSTable> ssTables,
+            final int generation,
+            @NotNull final MemTable memTable,
+            @NotNull final List<RangeTombstone> rangeTombstones) {
+        final int next = Math.max(generation, ssTables.isEmpty() ? 0 : ssTables.lastKey() + 1);
+        return new TableSet(memTable, new TreeMap<>(), new TreeMap<>(ssTables), next, rangeTombstones, 0L, 0L);
+    }
+
+    /**
+     * Returns SSTables which may be compacted: deeper levels and level 0 tables older than
+     * any MemTable being flushed, so that merging some of them keeps the order of generations.
+     */
+    @NotNull
+    NavigableMap<Integer, SSTable> compactable() {
+        if (flushing.isEmpty()) {
+            return ssTables;
+        }
+        final NavigableMap<Integer, SSTable> result = new TreeMap<>(ssTables.headMap(flushing.firstKey(), false));
+        for (final Map.Entry<Integer, SSTable> entry : ssTables.tailMap(flushing.firstKey(), true).entrySet()) {
+            if (entry.getValue().level() > 0) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    KeyOrder order() {
+        return memTable.order();
+    }
+
+    /**
+     * Returns true if the cell is deleted by a range tombstone.
+     */
+    boolean deleted(@NotNull final Cell cell) {
+        if (cell.getValue().getTimestamp() > rangeTombstonesUntil) {
+            return false;
+        }
+        for (final RangeTombstone tombstone : rangeTombstones) {
+            if (tombstone.covers(cell, order())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns given range tombstones written before given time which delete no cells of the tables any more,
+     * SSTables of given generations were compacted with them and so hold no cells they delete.
+     */
+    @NotNull
+    List<RangeTombstone> purgeableRangeTombstones(
+            final long before,
+            @NotNull final Collection<RangeTombstone> applied,
+            @NotNull final Set<Integer> compacted) {
+        final List<RangeTombstone> result = new ArrayList<>();
+        long minTimestamp = memTable.minTimestamp();
+        for (final MemTable table : flushing.values()) {
+            minTimestamp = Math.min(minTimestamp, table.minTimestamp());
+        }
+        if (batch != null) {
+            minTimestamp = Math.min(minTimestamp, batch.minTimestamp());
+        }
+        for (final RangeTombstone tombstone : applied) {
+            if (tombstone.timestamp() >= before || tombstone.timestamp() >= minTimestamp) {
+                continue;
+            }
+            boolean covers = false;
+            for (final Map.Entry<Integer, SSTable> entry : ssTables.entrySet()) {
+                if (!compacted.contains(entry.getKey()) && tombstone.covers(entry.getValue())) {
+                    covers = true;
+                    break;
+                }
+            }
+            if (!covers) {
+                result.add(tombstone);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Moves the current MemTable to flushing under the next generation and starts the empty one.
+     */
+    @NotNull
+    TableSet freeze(@NotNull final MemTable next) {
+        final NavigableMap<Integer, MemTable> frozen = new TreeMap<>(flushing);
+        frozen.put(generation, memTable);
+        return new TableSet(next, frozen, ssTables, levels, generation + 1, null, rangeTombstones,
+                fence, snapshotsUntil);
+    }
+
+    /**
+     * Shows cells of the batch over all tables while they are copied into the MemTable.
+     */
+    @NotNull
+    TableSet applying(@NotNull final MemTable batch) {
+        return new TableSet(memTable, flushing, ssTables, levels, generation, batch, rangeTombstones,
+                fence, snapshotsUntil);
+    }
+
+    /**
+     * Takes the next generation for a new SSTable.
+     */
+    @NotNull
+    TableSet reserve() {
+        return new TableSet(memTable, flushing, ssTables, levels, generation + 1, null, rangeTombstones,
+                fence, snapshotsUntil);
+    }
+
+    /**
+     * Replaces the flushing MemTable of given generation with its SSTable.
+     */
+    @NotNull
+    TableSet flushed(
+            final int gen,
+            @NotNull final SSTable table) {
+        final NavigableMap<Integer, MemTable> frozen = new TreeMap<>(flushing);
+        frozen.remove(gen);
+        final NavigableMap<Integer, SSTable> tables = new TreeMap<>(ssTables);
+        tables.put(gen, table);
+        return new TableSet(memTable, frozen, tables, generation, rangeTombstones, fence, snapshotsUntil);
+    }
+
+    /**
+     * Replaces SSTables of given generations with the tables they were compacted into.
+     */
+    @NotNull
+    TableSet compacted(
+            @NotNull final Collection<Integer> replaced,
+            @NotNull final Map<Integer, SSTable> outputs) {
+        final NavigableMap<Integer, SSTable> tables = new TreeMap<>(ssTables);
+        tables.keySet().removeAll(replaced);
+        tables.putAll(outputs);
+        return new TableSet(memTable, flushing, tables, generation, rangeTombstones, fence, snapshotsUntil);
+    }
+
+    /**
+     * Adds and removes range tombstones.
+     */
+    @NotNull
+    TableSet withRangeTombstones(
+            @NotNull final Collection<RangeTombstone> added,
+            @NotNull final Collection<RangeTombstone> removed) {
+        final List<RangeTombstone> result = new ArrayList<>(rangeTombstones);
+        result.addAll(added);
+        result.removeAll(removed);
+        return new TableSet(memTable, flushing, ssTables, levels, generation, batch, result, fence, snapshotsUntil);
+    }
+
+    /**
+     * Moves the fence to the timestamp of a new snapshot and sets the newest live one.
+     */
+    @NotNull
+    TableSet withSnapshots(
+            final long fence,
+            final long snapshotsUntil) {
+        return new TableSet(memTable, flushing, ssTables, levels, generation, batch, rangeTombstones,
+                Math.max(this.fence, fence), snapshotsUntil);
+    }
+}
@@ -8,17 +8,54 @@ import java.nio.ByteBuffer;
 final class Value implements Comparable<Value> {
     private final long timestamp;
     private final ByteBuffer data;
+    // Value replaced by this one which snapshots may still read, kept by MemTables only
+    @Nullable
+    private final Value older;
 
     Value(final long timestamp, @Nullable final ByteBuffer data) {
-        assert timestamp > 0L;
-        this.timestamp = timestamp;
-        this.data = data;
+        this(timestamp, data, null);
     }
 
     Value(final long timestamp) {
+        this(timestamp, null, null);
+    }
+
+    private Value(
+            final long timestamp,
+            @Nullable final ByteBuffer data,
+            @Nullable final Value older) {
         assert timestamp > 0L;
         this.timestamp = timestamp;
-        this.data = null;
+        this.data = data;
+        this.older = older;
+    }
+
+    /**
+     * Returns this value keeping the one it replaces.
+     */
+    @NotNull
+    Value replacing(@NotNull final Value value) {
+        return new Value(timestamp, data, value);
+    }
+
+    /**
+     * Returns the value replaced by this one if it is kept, null otherwise.
+     */
+    @Nullable
+    Value older() {
+        return older;
+    }
+
+    /**
+     * Returns the newest version written at or before given timestamp, null if there is none.
+     */
+    @Nullable
+    Value at(final long timestamp) {
+        Value value = this;
+        while (value != null && value.timestamp > timestamp) {
+            value = value.older;
+        }
+        return value;
     }
 
     boolean isTombstone() {
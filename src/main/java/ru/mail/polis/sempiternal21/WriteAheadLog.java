@@ -0,0 +1,314 @@
+package ru.mail.polis.sempiternal21;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Log of writes to a {@link MemTable} to restore it after a crash.
+ *
+ * <p>Records consist of the body length, CRC32 of the body and the body: key length, key,
+ * timestamp (negative for tombstones) and value. Batch records have the negated cell count
+ * in place of the key length followed by the cells with value lengths, so a batch is replayed
+ * whole or not at all. Replay stops at the first torn record.
+ *
+ * <p>Records are collected in a buffer. The first writer waiting for its record writes out
+ * everything collected so far and forces it to disk if needed while others wait for it or keep appending
+ * to another buffer, so concurrent writers share one write and one sync. Writers wait for their records
+ * to be written out with {@link SyncPolicy#NONE} and to be forced with {@link SyncPolicy#ALWAYS}.
+ * With {@link SyncPolicy#PERIODIC} records are forced by {@link #sync()} calls and writers only write out
+ * the buffer once it grows to {@link #BUFFER_SIZE}.
+ */
+final class WriteAheadLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private final SyncPolicy policy;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocate(BUFFER_SIZE);
+    private long appended;
+    private long written;
+    private long forced;
+    private boolean syncing;
+
+    WriteAheadLog(
+            @NotNull final File file,
+            @NotNull final SyncPolicy policy) throws IOException {
+        this.file = file;
+        this.policy = policy;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+    }
+
+    @NotNull
+    File file() {
+        return file;
+    }
+
+    /**
+     * Appends a record and returns the position to {@link #sync(long)} up to.
+     */
+    long append(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) throws IOException {
+        lock.lock();
+        try {
+            final ByteBuffer data = value.isTombstone() ? null : value.getData();
+            final int bodySize = Integer.BYTES + key.remaining() + Long.BYTES + (data == null ? 0 : data.remaining());
+            final int start = begin(bodySize);
+            pending.putInt(key.remaining());
+            pending.put(key.duplicate());
+            if (data == null) {
+                pending.putLong(-value.getTimestamp());
+            } else {
+                pending.putLong(value.getTimestamp());
+                pending.put(data);
+            }
+            return end(start, bodySize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends cells as one record and returns the position to {@link #sync(long)} up to.
+     */
+    long append(@NotNull final Collection<Cell> cells) throws IOException {
+        assert !cells.isEmpty();
+        lock.lock();
+        try {
+            int bodySize = Integer.BYTES;
+            for (final Cell cell : cells) {
+                final Value value = cell.getValue();
+                bodySize += Integer.BYTES + cell.getKey().remaining() + Long.BYTES
+                        + (value.isTombstone() ? 0 : Integer.BYTES + value.getData().remaining());
+            }
+            final int start = begin(bodySize);
+            pending.putInt(-cells.size());
+            for (final Cell cell : cells) {
+                final ByteBuffer key = cell.getKey();
+                final Value value = cell.getValue();
+                pending.putInt(key.remaining());
+                pending.put(key);
+                if (value.isTombstone()) {
+                    pending.putLong(-value.getTimestamp());
+                } else {
+                    final ByteBuffer data = value.getData();
+                    pending.putLong(value.getTimestamp());
+                    pending.putInt(data.remaining());
+                    pending.put(data);
+                }
+            }
+            return end(start, bodySize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves room for a record of given body size and writes its header but the checksum.
+     */
+    private int begin(final int bodySize) {
+        ensureCapacity(HEADER_SIZE + bodySize);
+        final int start = pending.position();
+        pending.putInt(bodySize);
+        pending.putInt(0);
+        return start;
+    }
+
+    /**
+     * Fills in the checksum of the record written since given start.
+     */
+    private long end(
+            final int start,
+            final int bodySize) {
+        final CRC32 crc = new CRC32();
+        crc.update(pending.duplicate().position(start + HEADER_SIZE).limit(pending.position()));
+        pending.putInt(start + Integer.BYTES, (int) crc.getValue());
+        appended += HEADER_SIZE + bodySize;
+        return appended;
+    }
+
+    private void ensureCapacity(final int size) {
+        if (pending.remaining() < size) {
+            final int capacity = Math.max(pending.capacity() * 2, pending.position() + size);
+            pending = ByteBuffer.allocate(capacity).put(pending.flip());
+        }
+    }
+
+    /**
+     * Returns once records up to given position are as durable as the policy requires of writes.
+     */
+    void commit(final long position) throws IOException {
+        if (policy == SyncPolicy.ALWAYS) {
+            sync(position, true);
+        } else if (policy == SyncPolicy.NONE) {
+            sync(position, false);
+        } else if (buffered() >= BUFFER_SIZE) {
+            // Bounds the buffer between periodic syncs, waiting for one in progress if any
+            sync(position, false);
+        }
+    }
+
+    private int buffered() {
+        lock.lock();
+        try {
+            return pending.position();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns once records up to given position are written out and forced to disk if asked to.
+     */
+    private void sync(
+            final long position,
+            final boolean force) throws IOException {
+        lock.lock();
+        try {
+            while ((force ? forced : written) < position) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                // Become the leader and write everything collected for the others too
+                syncing = true;
+                final ByteBuffer batch = pending.flip();
+                pending = spare.clear();
+                spare = batch;
+                final long end = appended;
+                boolean done = false;
+                lock.unlock();
+                try {
+                    write(batch);
+                    if (force) {
+                        channel.force(false);
+                    }
+                    done = true;
+                } finally {
+                    lock.lock();
+                    syncing = false;
+                    if (done) {
+                        written = end;
+                        if (force) {
+                            forced = end;
+                        }
+                    }
+                    synced.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns once all records appended so far are written out and, unless the policy is
+     * {@link SyncPolicy#NONE}, on disk.
+     */
+    void sync() throws IOException {
+        final long position;
+        lock.lock();
+        try {
+            position = appended;
+        } finally {
+            lock.unlock();
+        }
+        sync(position, policy != SyncPolicy.NONE);
+    }
+
+    private void write(@NotNull final ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            sync();
+        }
+    }
+
+    /**
+     * Puts logged cells into the MemTable in the order they were written.
+     */
+    static void replay(
+            @NotNull final File file,
+            @NotNull final MemTable memTable) throws IOException {
+        final ByteBuffer log;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        while (log.remaining() >= HEADER_SIZE) {
+            final int bodySize = log.getInt();
+            final int checksum = log.getInt();
+            if (bodySize < Integer.BYTES + Long.BYTES || bodySize > log.remaining()) {
+                logger.warn("Torn record at {} of {}", log.position() - HEADER_SIZE, file);
+                return;
+            }
+            final ByteBuffer body = log.slice().limit(bodySize);
+            log.position(log.position() + bodySize);
+            final CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("Corrupted record at {} of {}", log.position() - bodySize - HEADER_SIZE, file);
+                return;
+            }
+            final int keySize = body.getInt();
+            if (keySize >= 0) {
+                final ByteBuffer key = body.slice().limit(keySize);
+                body.position(body.position() + keySize);
+                final long timestamp = body.getLong();
+                if (timestamp < 0) {
+                    memTable.put(key, new Value(-timestamp));
+                } else {
+                    memTable.put(key, new Value(timestamp, body.slice()));
+                }
+                continue;
+            }
+            for (int i = keySize; i < 0; i++) {
+                final ByteBuffer key = slice(body, body.getInt());
+                final long timestamp = body.getLong();
+                if (timestamp < 0) {
+                    memTable.put(key, new Value(-timestamp));
+                } else {
+                    memTable.put(key, new Value(timestamp, slice(body, body.getInt())));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the next bytes of given length and skips them.
+     */
+    @NotNull
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer in,
+            final int length) {
+        final ByteBuffer result = in.slice().limit(length);
+        in.position(in.position() + length);
+        return result;
+    }
+}
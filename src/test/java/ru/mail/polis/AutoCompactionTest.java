@@ -0,0 +1,91 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks SSTables compacted in the background.
+ */
+class AutoCompactionTest extends TestBase {
+    private static final int VALUE_SIZE = 1024 * 1024;
+    private static final int KEY_COUNT = 10;
+    private static final int OVERWRITES = 6;
+    private static final long LIVE_SIZE = (long) KEY_COUNT * VALUE_SIZE;
+
+    private static void overwrite(
+            final DAO dao,
+            final Collection<ByteBuffer> keys) throws IOException {
+        for (int round = 0; round < OVERWRITES; round++) {
+            final ByteBuffer value = randomBuffer(VALUE_SIZE);
+            for (final ByteBuffer key : keys) {
+                dao.upsert(key, join(key, value));
+            }
+        }
+    }
+
+    private static Collection<ByteBuffer> keys() {
+        final Collection<ByteBuffer> keys = new ArrayList<>(KEY_COUNT);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys.add(randomKey());
+        }
+        return keys;
+    }
+
+    @Test
+    void disabled(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, Config.builder().autoCompaction(false).build())) {
+            overwrite(dao, keys());
+        }
+
+        assertTrue(Files.directorySize(data) > OVERWRITES * LIVE_SIZE);
+    }
+
+    @Test
+    void shrinks(@TempDir File data) throws IOException, InterruptedException {
+        final Collection<ByteBuffer> keys = keys();
+        try (DAO dao = DAOFactory.create(data)) {
+            overwrite(dao, keys);
+
+            // Compaction runs in the background, so give it some time
+            final long deadline = System.currentTimeMillis() + 30_000L;
+            while (Files.directorySize(data) > 3 * LIVE_SIZE && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100L);
+            }
+            assertTrue(Files.directorySize(data) <= 3 * LIVE_SIZE);
+
+            for (final ByteBuffer key : keys) {
+                assertEquals(KEY_LENGTH + VALUE_SIZE, dao.get(key).remaining());
+            }
+        }
+    }
+
+    @Test
+    void limitsTableSize(@TempDir File data) throws IOException {
+        final long maxTableSize = 4L * VALUE_SIZE;
+        final Collection<ByteBuffer> keys = keys();
+        try (DAO dao = DAOFactory.create(data, Config.builder().maxTableSize(maxTableSize).build())) {
+            overwrite(dao, keys);
+            dao.compact();
+
+            // A part may exceed the limit by the cell written last
+            final File[] tables = data.listFiles((dir, name) -> name.endsWith(".dat"));
+            assertNotNull(tables);
+            assertTrue(tables.length >= LIVE_SIZE / (maxTableSize + VALUE_SIZE));
+            for (final File table : tables) {
+                assertTrue(table.length() < maxTableSize + 2 * VALUE_SIZE);
+            }
+            for (final ByteBuffer key : keys) {
+                assertEquals(KEY_LENGTH + VALUE_SIZE, dao.get(key).remaining());
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.Config;
+import ru.mail.polis.sempiternal21.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks point lookups answered by per-SSTable Bloom filters.
+ */
+class BloomFilterTest extends TestBase {
+    private static final int TABLES = 5;
+    private static final int KEYS_PER_TABLE = 500;
+
+    private static Config config(final CountingCompression codec) {
+        return Config.builder()
+                .compression(codec)
+                .blockCacheSize(0)
+                .bloomFalsePositiveRate(1e-6)
+                .autoCompaction(false)
+                .build();
+    }
+
+    private static Map<ByteBuffer, ByteBuffer> fill(
+            final File data,
+            final Config config) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        for (int t = 0; t < TABLES; t++) {
+            try (DAO dao = new MyDAO(data, 1024 * 1024, config)) {
+                for (int i = 0; i < KEYS_PER_TABLE; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+        return expected;
+    }
+
+    @Test
+    void noFalseNegatives(@TempDir File data) throws IOException {
+        final CountingCompression codec = new CountingCompression();
+        final Config config = config(codec);
+        final Map<ByteBuffer, ByteBuffer> expected = fill(data, config);
+        try (DAO dao = new MyDAO(data, 1024 * 1024, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void missingKeySkipsTables(@TempDir File data) throws IOException {
+        final CountingCompression codec = new CountingCompression();
+        final Config config = config(codec);
+        final Map<ByteBuffer, ByteBuffer> expected = fill(data, config);
+        try (DAO dao = new MyDAO(data, 1024 * 1024, config)) {
+            final ByteBuffer present = expected.keySet().iterator().next();
+            codec.reads();
+            assertEquals(expected.get(present), dao.get(present));
+            assertEquals(1, codec.reads());
+
+            for (int i = 0; i < 1_000; i++) {
+                final ByteBuffer missing = randomKey();
+                assertThrows(NoSuchElementException.class, () -> dao.get(missing));
+            }
+            assertEquals(0, codec.reads());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.Compression;
+import ru.mail.polis.sempiternal21.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks storage with compressed SSTable blocks.
+ */
+class CompressionTest extends TestBase {
+    private static final Config DEFLATE = Config.builder()
+            .compression(Compression.DEFLATE)
+            .build();
+
+    private static ByteBuffer json(final int i) {
+        final String value = "{\"id\":" + i + ",\"name\":\"user" + i + "\",\"tags\":[\"alpha\",\"beta\",\"gamma\"]}";
+        return ByteBuffer.wrap(value.repeat(8).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(
+            final File data,
+            final Config config,
+            final int count) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < count; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = json(i);
+                dao.upsert(key, value);
+                map.put(key, value);
+            }
+        }
+        return map;
+    }
+
+    @Test
+    void reopen(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> map = fill(data, DEFLATE, 10_000);
+
+        try (DAO dao = DAOFactory.create(data, DEFLATE)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : map.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+
+            final Iterator<Record> actualIter = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> expected : map.entrySet()) {
+                final Record actual = actualIter.next();
+                assertEquals(expected.getKey(), actual.getKey());
+                assertEquals(expected.getValue(), actual.getValue());
+            }
+            assertFalse(actualIter.hasNext());
+        }
+    }
+
+    @Test
+    void smallerThanPlain(@TempDir File data) throws IOException {
+        final File plain = new File(data, "plain");
+        final File deflated = new File(data, "deflated");
+        assertTrue(plain.mkdir());
+        assertTrue(deflated.mkdir());
+
+        final int count = 10_000;
+        fill(plain, Config.DEFAULT, count);
+        fill(deflated, DEFLATE, count);
+
+        assertTrue(Files.directorySize(deflated) * 2 < Files.directorySize(plain));
+    }
+
+    @Test
+    void switchCodec(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> map = fill(data, DEFLATE, 1_000);
+        map.putAll(fill(data, Config.DEFAULT, 1_000));
+
+        try (DAO dao = DAOFactory.create(data, Config.DEFAULT)) {
+            dao.compact();
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : map.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Stores bytes inverted, just to tell its blocks apart.
+     */
+    private static final class Inverting implements Compression {
+        private final int id;
+
+        Inverting(final int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public ByteBuffer compress(final ByteBuffer raw) {
+            final ByteBuffer result = ByteBuffer.allocate(raw.remaining());
+            for (int i = raw.position(); i < raw.limit(); i++) {
+                result.put((byte) ~raw.get(i));
+            }
+            return result.flip();
+        }
+
+        @Override
+        public ByteBuffer decompress(final ByteBuffer compressed) {
+            return compress(compressed);
+        }
+    }
+
+    @Test
+    void customCodec(@TempDir File data) throws IOException {
+        final Compression codec = new Inverting(200);
+        final NavigableMap<ByteBuffer, ByteBuffer> map = fill(data, Config.builder().compression(codec).build(), 1_000);
+
+        try (DAO dao = DAOFactory.create(data, Config.builder().codec(codec).build())) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : map.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data, Config.DEFAULT)) {
+            assertThrows(IOException.class, () -> dao.get(map.firstKey()));
+        }
+    }
+
+    @Test
+    void codecIdTaken() {
+        final Compression other = new Inverting(Compression.DEFLATE.id());
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().codec(other));
+    }
+
+    @Test
+    void cachedBlocks(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> map = fill(data, DEFLATE, 1_000);
+        final Config tinyCache = Config.builder()
+                .compression(Compression.DEFLATE)
+                .blockCacheSize(16 * 1024)
+                .build();
+
+        try (DAO dao = DAOFactory.create(data, tinyCache)) {
+            for (int round = 0; round < 3; round++) {
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : map.entrySet()) {
+                    assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                }
+            }
+        }
+    }
+}
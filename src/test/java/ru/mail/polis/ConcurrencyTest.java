@@ -0,0 +1,88 @@
+package ru.mail.polis;
+
+import com.google.common.collect.Iterators;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks {@link DAO} shared by several threads.
+ */
+class ConcurrencyTest extends TestBase {
+    private static final int THREADS = 4;
+
+    @Test
+    void parallelWrites(@TempDir File data) throws Exception {
+        final int keysPerThread = 2_000;
+        final Map<ByteBuffer, ByteBuffer> expected = new ConcurrentHashMap<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        try (DAO dao = DAOFactory.create(data)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < keysPerThread; i++) {
+                        final ByteBuffer key = randomKey();
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                        assertEquals(value, dao.get(key));
+                    }
+                    return null;
+                }));
+            }
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 3; i++) {
+                    dao.compact();
+                }
+                return null;
+            }));
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertEquals(expected.size(), Iterators.size(dao.iterator(ByteBuffer.allocate(0))));
+        }
+    }
+
+    @Test
+    void scanWhileWriting(@TempDir File data) throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (DAO dao = DAOFactory.create(data)) {
+            final int count = 5_000;
+            final Future<?> writer = executor.submit(() -> {
+                for (int i = 0; i < count; i++) {
+                    dao.upsert(randomKey(), randomValue());
+                }
+                return null;
+            });
+            int previous = 0;
+            while (!writer.isDone()) {
+                final int current = Iterators.size(dao.iterator(ByteBuffer.allocate(0)));
+                assertTrue(current >= previous);
+                previous = current;
+            }
+            writer.get();
+            assertEquals(count, Iterators.size(dao.iterator(ByteBuffer.allocate(0))));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.sempiternal21.Compression;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores blocks as they are and counts blocks read, so that tests can tell which tables a read touched.
+ * Blocks are read by the codec only with the block cache turned off.
+ */
+final class CountingCompression implements Compression {
+    private final AtomicInteger reads = new AtomicInteger();
+
+    @Override
+    public int id() {
+        return 100;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer raw) {
+        final ByteBuffer result = ByteBuffer.allocate(raw.remaining());
+        result.put(raw.duplicate());
+        return result.flip();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(@NotNull final ByteBuffer compressed) {
+        reads.incrementAndGet();
+        return compress(compressed);
+    }
+
+    /**
+     * Returns the number of blocks read since the last call.
+     */
+    int reads() {
+        return reads.getAndSet(0);
+    }
+}
@@ -0,0 +1,93 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks ranges scanned in descending order.
+ */
+class DescendingRangeTest extends TestBase {
+
+    private static void check(
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static void checkRanges(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        check(expected.descendingMap(), dao.descendingRange(ByteBuffer.allocate(0), null));
+        for (int i = 0; i < 20; i++) {
+            final ByteBuffer from = randomKey();
+            final ByteBuffer to = randomKey();
+            if (from.compareTo(to) > 0) {
+                assertFalse(dao.descendingRange(from, to).hasNext());
+                continue;
+            }
+            check(expected.subMap(from, true, to, false).descendingMap(), dao.descendingRange(from, to));
+        }
+        final ByteBuffer last = expected.lastKey();
+        check(expected.headMap(last, false).descendingMap(), dao.descendingRange(ByteBuffer.allocate(0), last));
+        check(expected.tailMap(last, true).descendingMap(), dao.descendingRange(last, null));
+    }
+
+    @Test
+    void acrossTables(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        try (DAO dao = new MyDAO(data, 64 * 1024)) {
+            for (int i = 0; i < 3_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(random.nextInt(1, 128));
+                dao.upsert(key, value);
+                expected.put(key, value);
+                if (random.nextInt(10) == 0) {
+                    final ByteBuffer removed = expected.firstKey();
+                    dao.remove(removed);
+                    expected.remove(removed);
+                }
+            }
+            checkRanges(dao, expected);
+        }
+
+        try (DAO dao = new MyDAO(data, 64 * 1024)) {
+            checkRanges(dao, expected);
+            dao.compact();
+            checkRanges(dao, expected);
+        }
+    }
+
+    @Test
+    void latestBefore(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data, 1024)) {
+            for (int i = 0; i < 1_000; i++) {
+                dao.upsert(ByteBuffer.allocate(Integer.BYTES).putInt(0, i), randomValue());
+            }
+            final Iterator<Record> latest = dao.descendingRange(
+                    ByteBuffer.allocate(0),
+                    ByteBuffer.allocate(Integer.BYTES).putInt(0, 500));
+            for (int i = 499; i >= 490; i--) {
+                assertEquals(i, latest.next().getKey().getInt());
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.Config;
+import ru.mail.polis.sempiternal21.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks when MemTables are flushed.
+ */
+class FlushSizingTest extends TestBase {
+    private static final Config NO_COMPACTION = Config.builder()
+            .autoCompaction(false)
+            .build();
+
+    private static int tables(final File data) {
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assertNotNull(tables);
+        return tables.length;
+    }
+
+    @Test
+    void overwritesFlushByLog(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        ByteBuffer value = randomValue();
+        try (DAO dao = new MyDAO(data, 64 * 1024, NO_COMPACTION)) {
+            for (int i = 0; i < 10_000; i++) {
+                value = randomValue();
+                dao.upsert(key, value);
+            }
+            assertEquals(value, dao.get(key));
+        }
+        assertTrue(tables(data) > 1);
+
+        try (DAO dao = new MyDAO(data, 64 * 1024, NO_COMPACTION)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void tombstonesCount(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data, 64 * 1024, NO_COMPACTION)) {
+            for (int i = 0; i < 10_000; i++) {
+                dao.remove(randomKey());
+            }
+        }
+        assertTrue(tables(data) > 1);
+    }
+}
@@ -0,0 +1,101 @@
+package ru.mail.polis;
+
+import com.google.common.collect.Iterators;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.Config;
+import ru.mail.polis.sempiternal21.KeyOrder;
+import ru.mail.polis.sempiternal21.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks storage with keys in orders other than the default one.
+ */
+class KeyOrderTest extends TestBase {
+
+    private static List<ByteBuffer> keys(final Iterator<Record> records) {
+        final List<ByteBuffer> result = new ArrayList<>();
+        records.forEachRemaining(record -> result.add(record.getKey()));
+        return result;
+    }
+
+    private static ByteBuffer longKey(final long value) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(0, value);
+    }
+
+    @Test
+    void unsigned(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .keyOrder(KeyOrder.UNSIGNED)
+                .build();
+        final List<ByteBuffer> expected = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            expected.add(ByteBuffer.wrap(new byte[]{(byte) i, 1}));
+        }
+        try (DAO dao = new MyDAO(data, 1024, config)) {
+            for (final ByteBuffer key : expected) {
+                dao.upsert(key, randomValue());
+            }
+            assertEquals(expected, keys(dao.iterator(ByteBuffer.allocate(0))));
+        }
+
+        try (DAO dao = new MyDAO(data, 1024, config)) {
+            assertEquals(expected, keys(dao.iterator(ByteBuffer.allocate(0))));
+            final ByteBuffer from = ByteBuffer.wrap(new byte[]{(byte) 0x7F});
+            final ByteBuffer to = ByteBuffer.wrap(new byte[]{(byte) 0x81});
+            assertEquals(expected.subList(0x7F, 0x81), keys(dao.range(from, to)));
+            dao.compact();
+            assertEquals(expected, keys(dao.iterator(ByteBuffer.allocate(0))));
+        }
+    }
+
+    @Test
+    void int64(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .keyOrder(KeyOrder.INT64)
+                .build();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        try (DAO dao = new MyDAO(data, 16 * 1024, config)) {
+            for (int i = 0; i < 1_000; i++) {
+                dao.upsert(longKey(random.nextLong()), randomValue());
+            }
+            dao.upsert(longKey(-1L), randomValue());
+            dao.upsert(longKey(1L), randomValue());
+        }
+
+        try (DAO dao = new MyDAO(data, 16 * 1024, config)) {
+            long previous = Long.MIN_VALUE;
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            while (records.hasNext()) {
+                final long key = records.next().getKey().getLong();
+                assertTrue(key >= previous);
+                previous = key;
+            }
+            assertEquals(2, Iterators.size(dao.range(longKey(-1L), longKey(2L))));
+        }
+    }
+
+    @Test
+    void otherOrderRejected(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .keyOrder(KeyOrder.UNSIGNED)
+                .build();
+        try (DAO dao = new MyDAO(data, 1024, config)) {
+            dao.upsert(randomKey(), randomValue());
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new MyDAO(data, 1024));
+        try (DAO dao = new MyDAO(data, 1024, config)) {
+            assertTrue(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+}
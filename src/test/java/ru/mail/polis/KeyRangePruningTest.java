@@ -0,0 +1,92 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.Config;
+import ru.mail.polis.sempiternal21.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks range reads skipping SSTables whose key range can't overlap the request.
+ */
+class KeyRangePruningTest extends TestBase {
+    private static final int TABLES = 4;
+    private static final int KEYS_PER_TABLE = 500;
+
+    private static ByteBuffer prefixed(final int prefix) {
+        return join(ByteBuffer.wrap(new byte[]{(byte) prefix}), randomBuffer(KEY_LENGTH - 1));
+    }
+
+    private static ByteBuffer bound(final int prefix) {
+        return ByteBuffer.wrap(new byte[]{(byte) prefix});
+    }
+
+    /**
+     * Writes a table of keys starting with 0x10, then a table of keys starting with 0x20 and so on.
+     */
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(
+            final File data,
+            final Config config) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int t = 1; t <= TABLES; t++) {
+            try (DAO dao = new MyDAO(data, 1024 * 1024, config)) {
+                for (int i = 0; i < KEYS_PER_TABLE; i++) {
+                    final ByteBuffer key = prefixed(t * 0x10);
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+        return expected;
+    }
+
+    private static void check(
+            final Iterator<Record> records,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void skipsDisjointTables(@TempDir File data) throws IOException {
+        final CountingCompression codec = new CountingCompression();
+        final Config config = Config.builder()
+                .compression(codec)
+                .blockCacheSize(0)
+                .autoCompaction(false)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(data, config);
+        try (DAO dao = new MyDAO(data, 1024 * 1024, config)) {
+            codec.reads();
+            check(dao.range(ByteBuffer.allocate(0), null), expected);
+            final int all = codec.reads();
+            assertTrue(all >= TABLES);
+
+            final ByteBuffer from = bound(0x20);
+            final ByteBuffer to = bound(0x30);
+            check(dao.range(from, to), expected.subMap(from, true, to, false));
+            check(dao.descendingRange(from, to), expected.subMap(from, true, to, false).descendingMap());
+            assertTrue(codec.reads() <= 2 * (all / TABLES + 1));
+
+            assertFalse(dao.range(bound(0x18), bound(0x20)).hasNext());
+            assertFalse(dao.iterator(bound(0x50)).hasNext());
+            assertFalse(dao.descendingRange(ByteBuffer.allocate(0), bound(0x10)).hasNext());
+            assertEquals(0, codec.reads());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks storage left by the unversioned format of a single plain block without footer.
+ */
+class LegacyFormatTest extends TestBase {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Writes cells the way the first format did: key size, key, timestamp negated for tombstones,
+     * value size and value of live cells, then offsets of all cells and their count.
+     */
+    private static void writeLegacy(
+            final File file,
+            final NavigableMap<ByteBuffer, ByteBuffer> cells,
+            final long timestamp) throws IOException {
+        final List<Integer> offsets = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            int offset = 0;
+            for (final Map.Entry<ByteBuffer, ByteBuffer> cell : cells.entrySet()) {
+                offsets.add(offset);
+                final ByteBuffer key = cell.getKey().duplicate();
+                final ByteBuffer value = cell.getValue();
+                final int size = Integer.BYTES + key.remaining() + Long.BYTES
+                        + (value == EMPTY ? 0 : Integer.BYTES + value.remaining());
+                final ByteBuffer record = ByteBuffer.allocate(size)
+                        .putInt(key.remaining())
+                        .put(key)
+                        .putLong(value == EMPTY ? -timestamp : timestamp);
+                if (value != EMPTY) {
+                    record.putInt(value.remaining()).put(value.duplicate());
+                }
+                channel.write(record.rewind());
+                offset += size;
+            }
+            final ByteBuffer tail = ByteBuffer.allocate((offsets.size() + 1) * Integer.BYTES);
+            for (final int off : offsets) {
+                tail.putInt(off);
+            }
+            channel.write(tail.putInt(offsets.size()).rewind());
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        final Iterator<Record> records = dao.iterator(EMPTY);
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void readsUnversionedTable(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> cells = new TreeMap<>();
+        for (int i = 0; i < 1_000; i++) {
+            cells.put(randomKey(), randomValue());
+        }
+        final ByteBuffer removed = cells.firstKey();
+        cells.put(removed, EMPTY);
+        writeLegacy(new File(data, "1.dat"), cells, System.currentTimeMillis() - 1_000L);
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>(cells);
+        expected.remove(removed);
+
+        final ByteBuffer overwritten = expected.lastKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected);
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            final ByteBuffer middle = expected.navigableKeySet().higher(randomKey());
+            if (middle != null) {
+                assertEquals(middle, dao.iterator(middle).next().getKey());
+            }
+
+            dao.upsert(overwritten, value);
+            expected.put(overwritten, value);
+            check(dao, expected);
+            dao.compact();
+            check(dao, expected);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected);
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+}
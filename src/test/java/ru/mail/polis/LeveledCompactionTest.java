@@ -0,0 +1,98 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.CompactionStyle;
+import ru.mail.polis.sempiternal21.Config;
+import ru.mail.polis.sempiternal21.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks storage with leveled compaction.
+ */
+class LeveledCompactionTest extends TestBase {
+    private static final long FLUSH_THRESHOLD = 64 * 1024;
+    private static final Config LEVELED = Config.builder()
+            .compactionStyle(CompactionStyle.LEVELED)
+            .compactionTableCount(2)
+            .targetTableSize(32 * 1024)
+            .levelSizeMultiplier(2)
+            .build();
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+
+    private static void write(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final int count) throws IOException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer key = key(random.nextInt(5_000));
+            if (random.nextInt(10) == 0) {
+                dao.remove(key);
+                expected.remove(key);
+            } else {
+                final ByteBuffer value = randomBuffer(128);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        final Iterator<Record> actual = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    @Test
+    void background(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new MyDAO(data, FLUSH_THRESHOLD, LEVELED)) {
+            write(dao, expected, 50_000);
+            check(dao, expected);
+        }
+
+        // Levels survive reopening
+        try (DAO dao = new MyDAO(data, FLUSH_THRESHOLD, LEVELED)) {
+            check(dao, expected);
+            write(dao, expected, 20_000);
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void major(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new MyDAO(data, FLUSH_THRESHOLD, LEVELED)) {
+            write(dao, expected, 20_000);
+            dao.compact();
+            check(dao, expected);
+        }
+
+        // Split into tables of the target size
+        assertTrue(data.list().length > 1);
+        try (DAO dao = new MyDAO(data, FLUSH_THRESHOLD, Config.DEFAULT)) {
+            check(dao, expected);
+        }
+    }
+}
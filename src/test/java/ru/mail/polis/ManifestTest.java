@@ -0,0 +1,72 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks storage opened from the manifest rather than from the directory listing.
+ */
+class ManifestTest extends TestBase {
+
+    @Test
+    void deletesUnknownTables(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assertNotNull(tables);
+        assertEquals(1, tables.length);
+
+        // Looks like an output of a compaction which crashed before committing
+        final ByteBuffer removed = randomKey();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.remove(key);
+            dao.upsert(removed, randomValue());
+        }
+        java.nio.file.Files.copy(tables[0].toPath(), new File(data, "1000.dat").toPath());
+        java.nio.file.Files.copy(tables[0].toPath(), new File(data, "1001.tmp").toPath());
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            dao.upsert(randomKey(), randomValue());
+        }
+        assertFalse(new File(data, "1000.dat").exists());
+        assertFalse(new File(data, "1001.tmp").exists());
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertNotNull(dao.get(removed));
+        }
+    }
+
+    @Test
+    void tornTail(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+        java.nio.file.Files.write(
+                new File(data, "MANIFEST").toPath(),
+                new byte[]{0, 0, 1, 0, 42},
+                StandardOpenOption.APPEND);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            dao.compact();
+            assertEquals(value, dao.get(key));
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+}
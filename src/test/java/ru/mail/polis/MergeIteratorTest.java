@@ -0,0 +1,103 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.Config;
+import ru.mail.polis.sempiternal21.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks merges of tables which hold cells of the same keys.
+ */
+class MergeIteratorTest extends TestBase {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int KEYS = 300;
+    private static final int TABLES = 3;
+
+    private static void check(
+            final Iterator<Record> records,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void newestCellOfKeyWins(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .autoCompaction(false)
+                .build();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(randomKey());
+        }
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        // Every table overwrites all keys, the MemTable overwrites a half and removes a tenth
+        for (int t = 0; t < TABLES; t++) {
+            try (DAO dao = new MyDAO(data, 1024 * 1024, config)) {
+                for (final ByteBuffer key : keys) {
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+        try (DAO dao = new MyDAO(data, 1024 * 1024, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = keys.get(i);
+                if (i % 10 == 0) {
+                    dao.remove(key);
+                    expected.remove(key);
+                } else if (i % 2 == 0) {
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+
+            check(dao.iterator(EMPTY), expected);
+            check(dao.descendingRange(EMPTY, null), expected.descendingMap());
+            final ByteBuffer from = expected.firstKey();
+            final ByteBuffer to = expected.lastKey();
+            check(dao.range(from, to), expected.subMap(from, true, to, false));
+            check(dao.descendingRange(from, to), expected.subMap(from, true, to, false).descendingMap());
+        }
+    }
+
+    @Test
+    void newestTableWinsWithinMillisecond(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .autoCompaction(false)
+                .build();
+        final ByteBuffer key = randomKey();
+        ByteBuffer value = null;
+        // Each round leaves a table, neighbouring ones may be written within the same millisecond
+        for (int t = 0; t < 10; t++) {
+            try (DAO dao = new MyDAO(data, 1024 * 1024, config)) {
+                value = randomValue();
+                dao.upsert(key, value);
+            }
+        }
+        try (DAO dao = new MyDAO(data, 1024 * 1024, config)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+            expected.put(key, value);
+            check(dao.iterator(EMPTY), expected);
+            check(dao.descendingRange(EMPTY, null), expected);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.Config;
+import ru.mail.polis.sempiternal21.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks storage with MemTables kept off heap.
+ */
+class OffHeapMemTableTest extends TestBase {
+    private static final Config OFF_HEAP = Config.builder()
+            .offHeapMemTable(true)
+            .build();
+
+    private static void check(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        final Iterator<Record> actual = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = actual.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static int tables(final File data) {
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assertNotNull(tables);
+        return tables.length;
+    }
+
+    private static int write(
+            final File data,
+            final long flushSize,
+            final Config config) throws IOException {
+        assertTrue(data.isDirectory() || data.mkdir());
+        try (DAO dao = new MyDAO(data, flushSize, config)) {
+            for (int i = 0; i < 4_000; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+        }
+        return tables(data);
+    }
+
+    @Test
+    void valuesOffHeap(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = new MyDAO(data, 8 * 1024 * 1024, OFF_HEAP)) {
+            dao.upsert(key, value);
+            final ByteBuffer actual = dao.get(key);
+            assertEquals(value, actual);
+            assertTrue(actual.isDirect());
+            assertTrue(dao.iterator(key).next().getKey().isDirect());
+        }
+    }
+
+    @Test
+    void largerMemTables(@TempDir File data) throws IOException {
+        final Config onHeap = Config.builder()
+                .autoCompaction(false)
+                .build();
+        final Config offHeap = Config.builder()
+                .autoCompaction(false)
+                .offHeapMemTable(true)
+                .build();
+        final int onHeapTables = write(new File(data, "on"), 256 * 1024, onHeap);
+        final int offHeapTables = write(new File(data, "off"), 256 * 1024, offHeap);
+
+        // Only views of values count against the flush size off heap
+        assertTrue(offHeapTables * 3 < onHeapTables, offHeapTables + " vs " + onHeapTables);
+    }
+
+    @Test
+    void boundedOffHeap(@TempDir File data) throws IOException {
+        final Config bounded = Config.builder()
+                .autoCompaction(false)
+                .offHeapMemTable(true)
+                .offHeapMemTableSize(2 * 1024 * 1024)
+                .build();
+
+        // 4 MB of values flush by the off-heap bound, the heap part stays far below the flush size
+        assertTrue(write(data, 64 * 1024 * 1024, bounded) > 1);
+    }
+
+    @Test
+    void overwrite(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        try (DAO dao = new MyDAO(data, 8 * 1024 * 1024, OFF_HEAP)) {
+            for (int i = 0; i < 30_000; i++) {
+                final ByteBuffer key = ByteBuffer.allocate(Integer.BYTES).putInt(0, random.nextInt(3_000));
+                if (random.nextInt(10) == 0) {
+                    dao.remove(key);
+                    expected.remove(key);
+                } else {
+                    // Larger than a shared slab chunk now and then
+                    final ByteBuffer value = randomBuffer(random.nextInt(100) == 0 ? 200 * 1024 : 256);
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+            check(dao, expected);
+        }
+
+        try (DAO dao = new MyDAO(data, 8 * 1024 * 1024, OFF_HEAP)) {
+            check(dao, expected);
+            final ByteBuffer key = expected.firstKey();
+            dao.remove(key);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.Config;
+import ru.mail.polis.sempiternal21.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks removals made by {@link DAO#removeRange(ByteBuffer, ByteBuffer)}.
+ */
+class RangeTombstoneTest extends TestBase {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(
+            final DAO dao,
+            final int count) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            expected.put(key, value);
+        }
+        return expected;
+    }
+
+    private static void check(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        final Iterator<Record> records = dao.iterator(EMPTY);
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void removesRange(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data, 64 * 1024)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao, 1_000);
+            final List<ByteBuffer> keys = new ArrayList<>(expected.keySet());
+            final ByteBuffer from = keys.get(100);
+            final ByteBuffer to = keys.get(900);
+            dao.removeRange(from, to);
+            expected.subMap(from, to).clear();
+
+            check(dao, expected);
+            assertThrows(NoSuchElementException.class, () -> dao.get(from));
+            assertEquals(expected.get(to), dao.get(to));
+        }
+    }
+
+    @Test
+    void laterWritesSurvive(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = new MyDAO(data, 64 * 1024)) {
+            dao.upsert(key, randomValue());
+            dao.removeRange(EMPTY, null);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+        }
+
+        try (DAO dao = new MyDAO(data, 64 * 1024)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void persistedAndCompacted(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected;
+        try (DAO dao = new MyDAO(data, 64 * 1024)) {
+            expected = fill(dao, 1_000);
+            final ByteBuffer from = randomKey();
+            dao.removeRange(from, null);
+            expected.tailMap(from).clear();
+        }
+
+        final Config noGracePeriod = Config.builder()
+                .tombstoneGracePeriod(0)
+                .build();
+        try (DAO dao = new MyDAO(data, 64 * 1024, noGracePeriod)) {
+            check(dao, expected);
+            dao.compact();
+            check(dao, expected);
+        }
+
+        try (DAO dao = new MyDAO(data, 64 * 1024)) {
+            check(dao, expected);
+        }
+    }
+}
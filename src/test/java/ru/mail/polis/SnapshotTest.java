@@ -0,0 +1,119 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks read views taken by {@link DAO#snapshot()}.
+ */
+class SnapshotTest extends TestBase {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(
+            final DAO dao,
+            final int count) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            expected.put(key, value);
+        }
+        return expected;
+    }
+
+    private static void check(
+            final Iterator<Record> records,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void ignoresLaterWrites(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data, 64 * 1024)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao, 100);
+            try (Snapshot snapshot = dao.snapshot()) {
+                final ByteBuffer overwritten = expected.firstKey();
+                final ByteBuffer removed = expected.lastKey();
+                final ByteBuffer added = randomKey();
+                dao.upsert(overwritten, randomValue());
+                dao.remove(removed);
+                dao.upsert(added, randomValue());
+                dao.removeRange(EMPTY, null);
+
+                check(snapshot.iterator(EMPTY), expected);
+                check(snapshot.descendingRange(EMPTY, null), expected.descendingMap());
+                assertEquals(expected.get(overwritten), snapshot.get(overwritten));
+                assertEquals(expected.get(removed), snapshot.get(removed));
+                assertThrows(NoSuchElementException.class, () -> snapshot.get(added));
+                assertFalse(dao.iterator(EMPTY).hasNext());
+            }
+        }
+    }
+
+    @Test
+    void keepsVersionsOverRepeatedOverwrites(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer first = randomValue();
+        final ByteBuffer second = randomValue();
+        final ByteBuffer last = randomValue();
+        try (DAO dao = new MyDAO(data, 64 * 1024)) {
+            dao.upsert(key, first);
+            try (Snapshot older = dao.snapshot()) {
+                dao.upsert(key, second);
+                try (Snapshot newer = dao.snapshot()) {
+                    for (int i = 0; i < 10; i++) {
+                        dao.upsert(key, randomValue());
+                    }
+                    dao.upsert(key, last);
+
+                    assertEquals(first, older.get(key));
+                    assertEquals(second, newer.get(key));
+                    final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+                    expected.put(key, first);
+                    check(older.iterator(EMPTY), expected);
+                    expected.put(key, second);
+                    check(newer.iterator(EMPTY), expected);
+                    assertEquals(last, dao.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void survivesFlushesAndCompaction(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data, 64 * 1024)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao, 1_000);
+            final NavigableMap<ByteBuffer, ByteBuffer> current = new TreeMap<>();
+            try (Snapshot snapshot = dao.snapshot()) {
+                for (final ByteBuffer key : expected.keySet()) {
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    current.put(key, value);
+                }
+                dao.compact();
+
+                check(snapshot.iterator(EMPTY), expected);
+                check(dao.iterator(EMPTY), current);
+            }
+        }
+    }
+}
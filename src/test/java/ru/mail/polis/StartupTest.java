@@ -0,0 +1,49 @@
+package ru.mail.polis;
+
+import com.google.common.collect.Iterators;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.Config;
+import ru.mail.polis.sempiternal21.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks storage of many SSTables opened in parallel.
+ */
+class StartupTest extends TestBase {
+
+    @Test
+    void parallelWarmUp(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .autoCompaction(false)
+                .openThreads(4)
+                .warmUp(true)
+                .build();
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (DAO dao = new MyDAO(data, 16 * 1024, config)) {
+            for (int i = 0; i < 5_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assertNotNull(tables);
+        assertTrue(tables.length > 8);
+
+        try (DAO dao = new MyDAO(data, 16 * 1024, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertEquals(expected.size(), Iterators.size(dao.iterator(ByteBuffer.allocate(0))));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks tombstones dropped by compaction.
+ */
+class TombstonePurgeTest extends TestBase {
+    private static final int KEY_COUNT = 10_000;
+
+    private static void removeAll(
+            final File data,
+            final Config config) throws IOException {
+        final Collection<ByteBuffer> keys = new ArrayList<>(KEY_COUNT);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomBuffer(64));
+                keys.add(key);
+            }
+        }
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (final ByteBuffer key : keys) {
+                dao.remove(key);
+            }
+            dao.compact();
+
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+            for (final ByteBuffer key : keys) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+    }
+
+    @Test
+    void purge(@TempDir File data) throws IOException {
+        final File purged = new File(data, "purged");
+        final File kept = new File(data, "kept");
+        assertTrue(purged.mkdir());
+        assertTrue(kept.mkdir());
+
+        removeAll(purged, Config.DEFAULT);
+        removeAll(kept, Config.builder().tombstoneGracePeriod(60 * 60 * 1000L).build());
+
+        assertTrue(Files.directorySize(purged) * 4 < Files.directorySize(kept));
+        try (DAO dao = DAOFactory.create(kept)) {
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+
+    @Test
+    void shadowedByOlderTable(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.remove(key);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            dao.compact();
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.sempiternal21.Config;
+import ru.mail.polis.sempiternal21.SyncPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks writes restored from the log when {@link DAO} was not closed.
+ *
+ * <p>A crash is simulated by abandoning a {@link DAO} without closing it.
+ */
+class WriteAheadLogTest extends TestBase {
+    private static final Config ALWAYS = Config.builder()
+            .syncPolicy(SyncPolicy.ALWAYS)
+            .build();
+
+    private static Map<ByteBuffer, ByteBuffer> writeAndAbandon(
+            final File data,
+            final Config config,
+            final int count) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new ConcurrentHashMap<>();
+        final DAO dao = DAOFactory.create(data, config);
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            expected.put(key, value);
+        }
+        return expected;
+    }
+
+    private static void check(
+            final File data,
+            final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    private static List<File> logs(final File data) {
+        final File[] logs = data.listFiles((dir, name) -> name.endsWith(".log"));
+        assertNotNull(logs);
+        return List.of(logs);
+    }
+
+    @Test
+    void recover(@TempDir File data) throws IOException {
+        check(data, writeAndAbandon(data, Config.DEFAULT, 1_000));
+    }
+
+    @Test
+    void recoverSynced(@TempDir File data) throws IOException {
+        check(data, writeAndAbandon(data, ALWAYS, 1_000));
+    }
+
+    @Test
+    void recoverPeriodic(@TempDir File data) throws IOException, InterruptedException {
+        final long period = 50L;
+        final Config periodic = Config.builder()
+                .syncPolicy(SyncPolicy.PERIODIC)
+                .syncPeriod(period)
+                .build();
+        final Map<ByteBuffer, ByteBuffer> expected = writeAndAbandon(data, periodic, 1_000);
+        Thread.sleep(10 * period);
+
+        check(data, expected);
+    }
+
+    @Test
+    void periodicBufferBounded(@TempDir File data) throws IOException {
+        final Config rarely = Config.builder()
+                .syncPolicy(SyncPolicy.PERIODIC)
+                .syncPeriod(60 * 60 * 1000L)
+                .build();
+        final int count = 1_000;
+        writeAndAbandon(data, rarely, count);
+
+        // No sync is due yet, but all but the last 64 KB are written out
+        long size = 0L;
+        for (final File log : logs(data)) {
+            size += log.length();
+        }
+        assertTrue(size > (long) count * 1024 - 128 * 1024);
+    }
+
+    @Test
+    void recoverRemoved(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValue());
+        }
+        final DAO abandoned = DAOFactory.create(data);
+        abandoned.remove(key);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void tornTail(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = writeAndAbandon(data, Config.DEFAULT, 100);
+        final List<File> logs = logs(data);
+        assertFalse(logs.isEmpty());
+        for (final File log : logs) {
+            java.nio.file.Files.write(log.toPath(), new byte[]{0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+        }
+
+        check(data, expected);
+    }
+
+    @Test
+    void groupCommit(@TempDir File data) throws Exception {
+        final int threads = 4;
+        final int keysPerThread = 500;
+        final Map<ByteBuffer, ByteBuffer> expected = new ConcurrentHashMap<>();
+        final DAO dao = DAOFactory.create(data, ALWAYS);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < keysPerThread; i++) {
+                        final ByteBuffer key = randomKey();
+                        final ByteBuffer value = randomBuffer(64);
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(threads * keysPerThread, expected.size());
+        check(data, expected);
+    }
+
+    @Test
+    void concurrentOverwrites(@TempDir File data) throws Exception {
+        final int threads = 4;
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            keys.add(randomKey());
+        }
+        final DAO dao = DAOFactory.create(data);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 2_000; i++) {
+                        dao.upsert(keys.get(i % keys.size()), randomBuffer(16));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Writes of the same millisecond are replayed in the order the MemTable took them
+        final Map<ByteBuffer, ByteBuffer> expected = new ConcurrentHashMap<>();
+        for (final ByteBuffer key : keys) {
+            expected.put(key, dao.get(key));
+        }
+        check(data, expected);
+    }
+
+    @Test
+    void deletedOnClose(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data, ALWAYS)) {
+            dao.upsert(randomKey(), randomValue());
+        }
+
+        assertTrue(logs(data).isEmpty());
+    }
+}
@@ -0,0 +1,218 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks writes applied by {@link DAO#write(WriteBatch)}.
+ */
+class WriteBatchTest extends TestBase {
+
+    private static Map<ByteBuffer, ByteBuffer> batch(
+            final WriteBatch batch,
+            final int count) {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            batch.upsert(key, value);
+            expected.put(key, value);
+        }
+        return expected;
+    }
+
+    private static DAO create(final File data) throws IOException {
+        assertTrue(data.mkdir());
+        return DAOFactory.create(data);
+    }
+
+    /**
+     * Copies files of an open storage as a crash would leave them, so that the storage may still be closed.
+     */
+    private static void crash(
+            final File data,
+            final File copy) throws IOException {
+        assertTrue(copy.mkdir());
+        final File[] files = data.listFiles();
+        assertNotNull(files);
+        for (final File file : files) {
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    void lastWriteWins(@TempDir File data) throws IOException {
+        final ByteBuffer overwritten = randomKey();
+        final ByteBuffer removed = randomKey();
+        final ByteBuffer restored = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(removed, randomValue());
+            dao.write(new WriteBatch()
+                    .upsert(overwritten, randomValue())
+                    .remove(removed)
+                    .remove(restored)
+                    .upsert(overwritten, value)
+                    .upsert(restored, value));
+            assertEquals(value, dao.get(overwritten));
+            assertEquals(value, dao.get(restored));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            assertTrue(records.hasNext());
+            records.next();
+            assertTrue(records.hasNext());
+            records.next();
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void persisted(@TempDir File data) throws IOException {
+        final WriteBatch batch = new WriteBatch();
+        final Map<ByteBuffer, ByteBuffer> expected = batch(batch, 1_000);
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.write(batch);
+            check(dao, expected);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void recovered(@TempDir File data) throws IOException {
+        final WriteBatch batch = new WriteBatch();
+        final Map<ByteBuffer, ByteBuffer> expected = batch(batch, 100);
+        final File crashed = new File(data, "crashed");
+        final File live = new File(data, "live");
+        try (DAO dao = create(live)) {
+            dao.write(batch);
+            crash(live, crashed);
+        }
+
+        try (DAO dao = DAOFactory.create(crashed)) {
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void tornBatch(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final WriteBatch batch = new WriteBatch();
+        final Map<ByteBuffer, ByteBuffer> lost = batch(batch, 10);
+        final File crashed = new File(data, "crashed");
+        final File live = new File(data, "live");
+        try (DAO dao = create(live)) {
+            dao.upsert(key, value);
+            dao.write(batch);
+            crash(live, crashed);
+        }
+        final File[] logs = crashed.listFiles((dir, name) -> name.endsWith(".log"));
+        assertNotNull(logs);
+        assertEquals(1, logs.length);
+        try (RandomAccessFile log = new RandomAccessFile(logs[0], "rw")) {
+            log.setLength(log.length() - 1);
+        }
+
+        try (DAO dao = DAOFactory.create(crashed)) {
+            assertEquals(value, dao.get(key));
+            for (final ByteBuffer missing : lost.keySet()) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(missing));
+            }
+        }
+    }
+
+    /**
+     * Checks that the records are the keys, all holding the value of the same batch.
+     */
+    private static void checkWhole(
+            final Iterator<Record> records,
+            final int keys) {
+        ByteBuffer value = null;
+        int count = 0;
+        while (records.hasNext()) {
+            final Record record = records.next();
+            if (value == null) {
+                value = record.getValue();
+            }
+            assertEquals(value, record.getValue());
+            count++;
+        }
+        assertTrue(count == 0 || count == keys);
+    }
+
+    @Test
+    void noPartialBatches(@TempDir File data) throws Exception {
+        final int keys = 50;
+        final ByteBuffer[] batchKeys = new ByteBuffer[keys];
+        for (int i = 0; i < keys; i++) {
+            batchKeys[i] = randomKey();
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (DAO dao = DAOFactory.create(data)) {
+            final Future<?> writer = executor.submit(() -> {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        final ByteBuffer value = randomBuffer(16);
+                        final WriteBatch batch = new WriteBatch();
+                        for (final ByteBuffer key : batchKeys) {
+                            batch.upsert(key, value);
+                        }
+                        dao.write(batch);
+                        // Lookups after the write see the whole batch
+                        for (final ByteBuffer key : batchKeys) {
+                            assertEquals(value, dao.get(key));
+                        }
+                    }
+                } finally {
+                    done.set(true);
+                }
+                return null;
+            });
+            final Future<?> reader = executor.submit(() -> {
+                int reads = 0;
+                while (!done.get() || reads == 0) {
+                    // Snapshots never see a part of a batch written while they are read
+                    try (Snapshot snapshot = dao.snapshot()) {
+                        checkWhole(snapshot.iterator(ByteBuffer.allocate(0)), keys);
+                        checkWhole(snapshot.descendingRange(ByteBuffer.allocate(0), null), keys);
+                    }
+                    reads++;
+                }
+                return null;
+            });
+            writer.get();
+            reader.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
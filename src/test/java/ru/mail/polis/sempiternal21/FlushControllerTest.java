@@ -0,0 +1,94 @@
+package ru.mail.polis.sempiternal21;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks flush sizes picked by {@link FlushController} for a given heap use and write rate.
+ */
+class FlushControllerTest {
+    private static final long MB = 1024 * 1024;
+    private static final long MAX_HEAP = 1024 * MB;
+    private static final long MAX_THRESHOLD = 512 * MB;
+    // Three MemTables at most: the current one and two waiting for a flush
+    private static final int PENDING_FLUSHES = 2;
+
+    private long live;
+    private long now;
+
+    private FlushController controller() {
+        return new FlushController(MAX_THRESHOLD, PENDING_FLUSHES, MAX_HEAP, () -> live, () -> now);
+    }
+
+    /**
+     * Returns the threshold revised after the interval given the heap held by MemTables.
+     */
+    private long next(
+            final FlushController controller,
+            final long memTableBytes) {
+        now += 100L;
+        return controller.threshold(memTableBytes);
+    }
+
+    @Test
+    void maxUntilRevised() {
+        live = 900 * MB;
+        final FlushController controller = controller();
+        assertEquals(MAX_THRESHOLD, controller.threshold(0L));
+        now += 99L;
+        assertEquals(MAX_THRESHOLD, controller.threshold(0L));
+    }
+
+    @Test
+    void shareOfHeapLeft() {
+        live = 224 * MB;
+        final FlushController controller = controller();
+        // Half of the heap not taken by others is split among MemTables, the own ones are not others
+        assertEquals((MAX_HEAP - 200 * MB) / 2 / 3, next(controller, 24 * MB));
+        live = 64 * MB;
+        assertEquals(MAX_HEAP / 2 / 3, next(controller, 64 * MB));
+    }
+
+    @Test
+    void shrinksAsHeapFills() {
+        final FlushController controller = controller();
+        long previous = Long.MAX_VALUE;
+        for (live = 100 * MB; live < MAX_HEAP; live += 100 * MB) {
+            final long threshold = next(controller, 0L);
+            assertTrue(threshold < previous);
+            previous = threshold;
+        }
+        // Never below the minimum however full the heap is
+        live = 2 * MAX_HEAP;
+        assertEquals(256 * 1024, next(controller, 0L));
+    }
+
+    @Test
+    void shrinksAsRateRises() {
+        live = 100 * MB;
+        final FlushController controller = controller();
+        final long idle = next(controller, 0L);
+        assertEquals((MAX_HEAP - live) / 2 / 3, idle);
+
+        // 10 MB per interval weighs 0.3, so 3 MB are expected until the next revision
+        controller.written(10 * MB);
+        final long writing = next(controller, 0L);
+        assertEquals(((MAX_HEAP - live) / 2 - 3 * MB) / 3, writing, 3);
+
+        controller.written(100 * MB);
+        final long faster = next(controller, 0L);
+        assertTrue(faster < writing);
+
+        // The rate decays once writes stop
+        assertTrue(next(controller, 0L) > faster);
+    }
+
+    @Test
+    void boundedByMax() {
+        final FlushController controller = new FlushController(MB, PENDING_FLUSHES, MAX_HEAP, () -> live, () -> now);
+        assertEquals(MB, next(controller, 0L));
+        live = MAX_HEAP;
+        assertEquals(256 * 1024, next(controller, 0L));
+    }
+}
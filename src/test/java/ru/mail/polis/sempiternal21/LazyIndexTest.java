@@ -0,0 +1,94 @@
+package ru.mail.polis.sempiternal21;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that SSTable indexes are read on first access or by warm-up rather than on opening.
+ */
+class LazyIndexTest {
+    private static final long FLUSH_THRESHOLD = 16 * 1024;
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+
+    private static void write(
+            final File data,
+            final Config config) throws IOException {
+        try (MyDAO dao = new MyDAO(data, FLUSH_THRESHOLD, config)) {
+            final byte[] value = new byte[100];
+            for (int i = 0; i < 5_000; i++) {
+                ThreadLocalRandom.current().nextBytes(value);
+                dao.upsert(key(i), ByteBuffer.wrap(value));
+            }
+        }
+    }
+
+    private static List<SSTable> loaded(final MyDAO dao) {
+        final List<SSTable> result = new ArrayList<>();
+        for (final SSTable table : dao.ssTables().values()) {
+            if (table.indexLoaded()) {
+                result.add(table);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    void loadedOnAccess(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .autoCompaction(false)
+                .build();
+        write(data, config);
+
+        try (MyDAO dao = new MyDAO(data, FLUSH_THRESHOLD, config)) {
+            final int tables = dao.ssTables().size();
+            assertTrue(tables > 8);
+            assertTrue(loaded(dao).isEmpty());
+
+            // Bloom filters and key ranges come from the footer
+            for (final SSTable table : dao.ssTables().values()) {
+                assertNotNull(table.minKey());
+                table.mightContain(key(0));
+            }
+            assertTrue(loaded(dao).isEmpty());
+
+            assertNotNull(dao.get(key(0)));
+            assertFalse(loaded(dao).isEmpty());
+            dao.iterator(ByteBuffer.allocate(0)).hasNext();
+            assertEquals(tables, loaded(dao).size());
+        }
+    }
+
+    @Test
+    void loadedByWarmUp(@TempDir File data) throws IOException, InterruptedException {
+        final Config config = Config.builder()
+                .autoCompaction(false)
+                .openThreads(4)
+                .warmUp(true)
+                .build();
+        write(data, config);
+
+        try (MyDAO dao = new MyDAO(data, FLUSH_THRESHOLD, config)) {
+            final int tables = dao.ssTables().size();
+            assertTrue(tables > 8);
+
+            // Warm-up runs in the background, so give it some time
+            final long deadline = System.currentTimeMillis() + 30_000L;
+            while (loaded(dao).size() < tables && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertEquals(tables, loaded(dao).size());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ru.mail.polis.sempiternal21;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the heap size {@link MemTable} accounts per entry.
+ */
+class MemTableTest {
+    // Empty map
+    private static final long EMPTY = 128L;
+    // Node of 24, index share of 8, key view of 64 and the array of 16 bytes with its header of 16
+    private static final long KEY_COST = 24L + 8L + 64L + 32L;
+    // Value of 32, data view of 64 and the array of 100 bytes with its header aligned to 120
+    private static final long VALUE_COST = 32L + 64L + 120L;
+    private static final long TOMBSTONE_COST = 32L;
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(16).putInt(0, i);
+    }
+
+    private static ByteBuffer value() {
+        return ByteBuffer.allocate(100);
+    }
+
+    @Test
+    void countsEntries() {
+        final MemTable table = new MemTable(KeyOrder.UNSIGNED);
+        assertEquals(EMPTY, table.sizeInBytes());
+        for (int i = 0; i < 1_000; i++) {
+            table.put(key(i), new Value(1L, value()));
+        }
+        assertEquals(EMPTY + 1_000 * (KEY_COST + VALUE_COST), table.sizeInBytes());
+    }
+
+    @Test
+    void countsReplacements() {
+        final MemTable table = new MemTable(KeyOrder.UNSIGNED);
+        for (int i = 0; i < 1_000; i++) {
+            table.put(key(i), new Value(1L, value()));
+        }
+        // Overwrites take the place of values, tombstones keep the key only
+        for (int i = 0; i < 1_000; i++) {
+            table.put(key(i), new Value(2L, value()));
+        }
+        assertEquals(EMPTY + 1_000 * (KEY_COST + VALUE_COST), table.sizeInBytes());
+        for (int i = 0; i < 500; i++) {
+            table.put(key(i), new Value(3L));
+        }
+        assertEquals(EMPTY + 1_000 * KEY_COST + 500 * (TOMBSTONE_COST + VALUE_COST), table.sizeInBytes());
+    }
+
+    @Test
+    void countsKeptVersions() {
+        final MemTable table = new MemTable(KeyOrder.UNSIGNED);
+        table.put(key(0), new Value(1L, value()));
+        // A snapshot at 1 keeps the first version, the ones after it are dropped
+        for (long ts = 2L; ts < 10L; ts++) {
+            table.put(key(0), new Value(ts, value()), 1L);
+        }
+        assertEquals(EMPTY + KEY_COST + 2 * VALUE_COST, table.sizeInBytes());
+    }
+}
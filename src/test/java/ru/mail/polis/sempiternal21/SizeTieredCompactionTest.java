@@ -0,0 +1,66 @@
+package ru.mail.polis.sempiternal21;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks which SSTables {@link SizeTieredCompaction} picks.
+ */
+class SizeTieredCompactionTest {
+    private static final Config CONFIG = Config.builder()
+            .compactionStyle(CompactionStyle.SIZE_TIERED)
+            .compactionTableCount(2)
+            .build();
+
+    private static SSTable table(
+            final File dir,
+            final int generation,
+            final int level,
+            final int rows) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            final ByteBuffer key = ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+            cells.add(new Cell(key, new Value(generation, ByteBuffer.allocate(1024))));
+        }
+        final File file = new File(dir, generation + ".dat");
+        SSTable.serialize(file, cells.iterator(), cells.size(), CONFIG, level);
+        return new SSTable(file, CONFIG, null);
+    }
+
+    @Test
+    void bucketsOfLevel0(@TempDir File data) throws IOException {
+        final NavigableMap<Integer, SSTable> tables = new TreeMap<>();
+        for (int gen = 1; gen <= 3; gen++) {
+            tables.put(gen, table(data, gen, 0, 10));
+        }
+        final Compaction compaction = new SizeTieredCompaction(CONFIG).pick(tables);
+        assertNotNull(compaction);
+        assertEquals(0, compaction.level);
+        assertEquals(tables.keySet(), compaction.inputs.keySet());
+    }
+
+    @Test
+    void collapsesLevels(@TempDir File data) throws IOException {
+        // Left by leveled compaction: a large table of level 0 older than a small one of level 1,
+        // merging the latter with the newest table would put its cells above the older one
+        final NavigableMap<Integer, SSTable> tables = new TreeMap<>();
+        tables.put(1, table(data, 1, 2, 2_000));
+        tables.put(2, table(data, 2, 0, 2_000));
+        tables.put(3, table(data, 3, 1, 10));
+        tables.put(4, table(data, 4, 0, 10));
+        final Compaction compaction = new SizeTieredCompaction(CONFIG).pick(tables);
+        assertNotNull(compaction);
+        assertEquals(0, compaction.level);
+        assertEquals(tables.keySet(), compaction.inputs.keySet());
+    }
+}